@@ -1,19 +1,21 @@
 package bowser;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static ox.util.Utils.checkNotEmpty;
+import static ox.util.Utils.getExtension;
 import static ox.util.Utils.isNullOrEmpty;
 import static ox.util.Utils.normalize;
 import static ox.util.Utils.propagate;
-import static ox.util.Utils.sleep;
 
 import java.net.InetSocketAddress;
+import java.nio.file.StandardWatchEventKinds;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import javax.net.ssl.SSLContext;
 
@@ -25,18 +27,26 @@ import org.simpleframework.transport.connect.SocketConnection;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import bowser.handler.ExceptionHandler;
 import bowser.handler.PortRedirect;
 import bowser.handler.RouteHandler;
+import bowser.handler.RouteIndex;
 import bowser.handler.StaticContentHandler;
 import bowser.misc.CacheBuster;
 import bowser.misc.DefaultWebLogger;
+import bowser.misc.DependencyTracker;
+import bowser.misc.DisconnectWatchdog;
+import bowser.misc.FileWatcher;
+import bowser.misc.UploadAllocator;
 import bowser.misc.UserReadableError;
 import bowser.misc.WebLogger;
 import bowser.model.Controller;
+import bowser.model.HeaderPolicy;
 import bowser.model.Request;
 import bowser.model.RequestHandler;
 import bowser.model.Response;
@@ -46,7 +56,6 @@ import bowser.node.Head;
 import bowser.template.Template;
 
 import ox.Log;
-import ox.NamedThreadFactory;
 import ox.Threads;
 import ox.x.XList;
 import ox.x.XMultimap;
@@ -54,8 +63,7 @@ import ox.x.XOptional;
 
 public class BowserWebServer {
 
-  private static Executor interruptorPool = Executors
-      .newCachedThreadPool(new NamedThreadFactory(BowserWebServer.class, "interruptor"));
+  private static final DisconnectWatchdog disconnectWatchdog = new DisconnectWatchdog();
 
   public static boolean debugHandlers = false;
   private static InheritableThreadLocal<Request> currentRequest = new InheritableThreadLocal<>();
@@ -69,10 +77,34 @@ public class BowserWebServer {
   public final List<Controller> controllers = Lists.newArrayList();
 
   private final List<RequestHandler> handlers = Lists.newArrayList();
+
+  /**
+   * The handlers, with each run of consecutive RouteHandlers compiled into a RouteIndex. Rebuilt lazily whenever a
+   * handler is added.
+   */
+  private volatile List<RequestHandler> dispatchChain = null;
+
   private final Map<String, Controller> routeControllers = Maps.newHashMap();
 
   private StaticContentHandler staticContentHandler;
 
+  /**
+   * If true, requests for static resources are served by the StaticContentHandler before any other handlers run.
+   */
+  private boolean staticFastPath = true;
+
+  /**
+   * Static extensions which are claimed by a route or a custom handler, and so should always go through the handlers.
+   */
+  private final Set<String> claimedStaticExtensions = Sets.newConcurrentHashSet();
+
+  private final LongAdder staticFastPathCount = new LongAdder();
+
+  private UploadAllocator uploadAllocator = new UploadAllocator();
+
+  private HeaderPolicy headerPolicy = HeaderPolicy.defaults();
+  private HeaderPolicy staticHeaderPolicy = HeaderPolicy.defaults();
+
   private SSLContext sslContext;
 
   private WebLogger logger = new DefaultWebLogger();
@@ -84,6 +116,9 @@ public class BowserWebServer {
 
   private final CacheBuster cacheBuster;
 
+  private final DependencyTracker dependencyTracker = new DependencyTracker();
+  private boolean watchFiles = false;
+
   /**
    * If true, when a web socket gets disconnected, we will interrupt the thread which is processing that request.
    */
@@ -117,6 +152,7 @@ public class BowserWebServer {
 
   public BowserWebServer add(RequestHandler handler) {
     handlers.add(handler);
+    dispatchChain = null;
     return this;
   }
 
@@ -149,6 +185,16 @@ public class BowserWebServer {
     return this;
   }
 
+  /**
+   * Controls how request bodies and multipart uploads are buffered: the size above which they are spooled to disk, and
+   * the per-request and per-part size limits. Requests which go over a limit are answered with a 413 and never reach a
+   * handler.
+   */
+  public BowserWebServer uploads(UploadAllocator uploadAllocator) {
+    this.uploadAllocator = checkNotNull(uploadAllocator);
+    return this;
+  }
+
   public BowserWebServer logger(WebLogger logger) {
     this.logger = logger;
     return this;
@@ -164,6 +210,16 @@ public class BowserWebServer {
     return this;
   }
 
+  /**
+   * Keeps every cache enabled, but watches the source folders and evicts cached entries (static files, compiled
+   * stylesheets, hashed paths, templates) whenever a file they were built from changes. This is meant for development,
+   * where it is much faster than turning caching off. Requires caching to be enabled.
+   */
+  public BowserWebServer watchFiles() {
+    this.watchFiles = true;
+    return this;
+  }
+
   /**
    * If true, when a connection is disconnected, this will interrupt the thread which is processing the request. This
    * can be useful for avoiding intensive computations on a request that is already aborted by the client.
@@ -173,6 +229,46 @@ public class BowserWebServer {
     return this;
   }
 
+  /**
+   * Static resources (js, css, images, etc) are normally served before any handlers get a chance to look at the request.
+   * Turn this off if you have custom handlers which need to see every request.
+   */
+  public BowserWebServer staticFastPath(boolean staticFastPath) {
+    this.staticFastPath = staticFastPath;
+    return this;
+  }
+
+  /**
+   * Requests with these extensions will always go through the regular handlers before falling back to static content.
+   * Routes whose path ends with a static extension (ex: /sitemap.txt) claim that extension automatically.
+   */
+  public BowserWebServer claimStaticExtension(String... extensions) {
+    for (String extension : extensions) {
+      claimedStaticExtensions.add(extension.toLowerCase());
+    }
+    return this;
+  }
+
+  /**
+   * The CORS/security headers added to every response. Individual routes can override this with Route.headers().
+   */
+  public BowserWebServer headers(HeaderPolicy headerPolicy) {
+    this.headerPolicy = checkNotNull(headerPolicy);
+    return this;
+  }
+
+  /**
+   * The headers added to static resources which are served through the fast path.
+   */
+  public BowserWebServer staticHeaders(HeaderPolicy staticHeaderPolicy) {
+    this.staticHeaderPolicy = checkNotNull(staticHeaderPolicy);
+    return this;
+  }
+
+  public long getStaticFastPathCount() {
+    return staticFastPathCount.sum();
+  }
+
   public BowserWebServer googleAnalytics(String googleAnalyticsId) {
     return googleAnalytics(googleAnalyticsId, "");
   }
@@ -205,13 +301,16 @@ public class BowserWebServer {
     return cacheBuster;
   }
 
+  public DependencyTracker getDependencyTracker() {
+    return dependencyTracker;
+  }
+
   public Head getHead() {
     return head;
   }
 
   public void processRequest(Request request, Response response) {
     Stopwatch watch = Stopwatch.createStarted();
-    AtomicBoolean running = new AtomicBoolean(true);
     try {
       currentRequest.set(request);
       synchronized (requestsInProgress) {
@@ -219,24 +318,22 @@ public class BowserWebServer {
       }
 
       if (interruptHandlerOnDisconnect) {
-        final Thread thread = Thread.currentThread();
-        interruptorPool.execute(() -> {
-          sleep(30);
-          while (running.get()) {
-            if (request.isAborted()) {
-              thread.interrupt();
-              break;
-            } else {
-              sleep(30);
-            }
-          }
-        });
+        disconnectWatchdog.watch(request);
+      }
+      uploadAllocator.hold(request);
+
+      if (uploadAllocator.isTooLarge(request)) {
+        response.status(Status.REQUEST_ENTITY_TOO_LARGE);
+        response.contentType("text/plain");
+        response.write("Request body is too large.");
+        return;
       }
 
       routeToHandler(request, response);
     } catch (final Throwable e) {
       handleError(response, e);
     } finally {
+      disconnectWatchdog.unwatch(request);
       synchronized (requestsInProgress) {
         requestsInProgress.remove(request);
       }
@@ -245,10 +342,19 @@ public class BowserWebServer {
       } catch (Throwable t) {
         Log.debug("Problem closing output: " + request);
       }
+      uploadAllocator.release(request);
       cacheBuster.onRequestFinished();
+      recordStats(request, response, watch);
       logRequest(request, response, watch);
       currentRequest.set(null);
-      running.set(false);
+    }
+  }
+
+  private void recordStats(Request request, Response response, Stopwatch watch) {
+    Route route = request.getRoute();
+    if (route != null) {
+      boolean error = response.exception != null || response.status() >= 500;
+      route.stats.record(watch.elapsed(TimeUnit.MICROSECONDS), response.getBytesWritten(), error);
     }
   }
 
@@ -289,48 +395,58 @@ public class BowserWebServer {
     try {
       boolean handled = false;
 
-      response.header("Access-Control-Allow-Origin", request.request.getValue("Origin"));
-      response.header("Access-Control-Allow-Credentials", "true");
-      response.header("Access-Control-Expose-Headers", "Content-Disposition");
-      response.header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-      response.header("Access-Control-Allow-Headers", "Content-Type, Authorization");
+      boolean isStaticResource = request.isStaticResource();
+      boolean staticFastPath = isStaticResource && this.staticFastPath
+          && (claimedStaticExtensions.isEmpty() || !claimedStaticExtensions.contains(request.getExtension()));
+
+      (staticFastPath ? staticHeaderPolicy : headerPolicy).apply(request, response);
 
       if ("OPTIONS".equalsIgnoreCase(request.getMethod())) {
+        // a preflight gets the headers of the route that the actual request is going to
+        Route route = findPreflightRoute(request);
+        if (route != null && route.headerPolicy != null) {
+          route.headerPolicy.apply(request, response);
+        }
         response.status(200);
         return;
       }
 
-      response.header("X-Frame-Options", "SAMEORIGIN");
-      if (sslContext != null) {
-        long ONE_YEAR = TimeUnit.DAYS.toSeconds(365);
-        response.header("Strict-Transport-Security", "max-age=" + ONE_YEAR + "; includeSubDomains");
-      }
-
       String s = normalize(request.getHeader("Accept-Encoding"));
       if (s.contains("gzip")) {
         response.setCompressed(true);
       }
 
-      for (RequestHandler handler : handlers) {
-        lastHandler = handler;
-        if (handler.process(request, response)) {
-          handled = true;
-          if (debugHandlers) {
-            if (handler instanceof RouteHandler) {
-              RouteHandler route = (RouteHandler) handler;
-              Controller controller = route.getRoute().controller;
-              Log.debug("request handled by " + controller + " :: " + route);
-            } else {
-              Log.debug("request handled by " + handler + " :: " + handler.getClass());
+      if (staticFastPath) {
+        // the StaticContentHandler resolves hashed paths (foo-j2np21.js) back to the original asset
+        if (staticContentHandler.process(request, response)) {
+          staticFastPathCount.increment();
+          return;
+        }
+        isStaticResource = false; // we already know there's no static content for this path
+        headerPolicy.apply(request, response);
+      }
+
+      for (RequestHandler handler : getDispatchChain()) {
+        if (handler instanceof RouteIndex) {
+          for (RouteHandler routeHandler : ((RouteIndex) handler).getCandidates(request)) {
+            lastHandler = routeHandler;
+            if (process(routeHandler, request, response)) {
+              handled = true;
+              break;
             }
           }
+        } else {
+          lastHandler = handler;
+          handled = process(handler, request, response);
+        }
+        if (handled) {
           break;
         }
       }
       lastHandler = null;
 
       if (!handled) {
-        if (request.isStaticResource()) {
+        if (isStaticResource) {
           handled = staticContentHandler.process(request, response);
         }
         if (!handled) {
@@ -354,6 +470,80 @@ public class BowserWebServer {
     }
   }
 
+  /**
+   * The route which the request that a CORS preflight is asking about would go to.
+   */
+  private Route findPreflightRoute(Request request) {
+    String method = request.getHeader("Access-Control-Request-Method");
+    if (method == null) {
+      method = "GET";
+    }
+    for (RequestHandler handler : getDispatchChain()) {
+      if (handler instanceof RouteIndex) {
+        for (RouteHandler routeHandler : ((RouteIndex) handler).getCandidates(request, method)) {
+          if (routeHandler.getRoute().matches(request, method)) {
+            return routeHandler.getRoute();
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private boolean process(RequestHandler handler, Request request, Response response) {
+    if (!handler.process(request, response)) {
+      return false;
+    }
+    if (debugHandlers) {
+      if (handler instanceof RouteHandler) {
+        RouteHandler route = (RouteHandler) handler;
+        Controller controller = route.getRoute().controller;
+        Log.debug("request handled by " + controller + " :: " + route);
+      } else {
+        Log.debug("request handled by " + handler + " :: " + handler.getClass());
+      }
+    }
+    return true;
+  }
+
+  private List<RequestHandler> getDispatchChain() {
+    List<RequestHandler> ret = dispatchChain;
+    if (ret == null) {
+      ret = compileDispatchChain();
+      dispatchChain = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Custom handlers keep their registered position. Each run of RouteHandlers between them gets compiled into a
+   * RouteIndex so that we don't have to run every route's regex on every request.
+   */
+  private List<RequestHandler> compileDispatchChain() {
+    List<RequestHandler> ret = Lists.newArrayList();
+    List<RouteHandler> run = Lists.newArrayList();
+    for (RequestHandler handler : handlers) {
+      if (handler instanceof RouteHandler) {
+        // routes can be added after start(), so their policies are compiled here rather than only in start()
+        HeaderPolicy policy = ((RouteHandler) handler).getRoute().headerPolicy;
+        if (policy != null) {
+          policy.compile(sslContext != null);
+        }
+        run.add((RouteHandler) handler);
+      } else {
+        if (!run.isEmpty()) {
+          ret.add(new RouteIndex(run));
+          run.clear();
+        }
+        ret.add(handler);
+      }
+    }
+    if (!run.isEmpty()) {
+      ret.add(new RouteIndex(run));
+    }
+    return ImmutableList.copyOf(ret);
+  }
+
   private final Container container = new Container() {
     @Override
     public void handle(org.simpleframework.http.Request request, org.simpleframework.http.Response response) {
@@ -364,9 +554,39 @@ public class BowserWebServer {
   @SuppressWarnings("resource")
   public BowserWebServer start() {
     checkForDuplicatePaths();
+    claimRouteStaticExtensions();
+    compileHeaderPolicies();
+    dispatchChain = compileDispatchChain();
+    checkState(!watchFiles || enableCaching, "watchFiles() requires caching to be enabled.");
+    FileWatcher fileWatcher = enableCaching && !watchFiles ? null : new FileWatcher();
+    if (watchFiles) {
+      dependencyTracker.enable();
+      fileWatcher.onChange((kind, file) -> {
+        if (kind == StandardWatchEventKinds.OVERFLOW) {
+          // we missed some events, so anything in this folder could have changed
+          dependencyTracker.invalidateFolder(file);
+        } else {
+          dependencyTracker.invalidateFile(file);
+        }
+      });
+      dependencyTracker.onInvalidate("route:", key -> {
+        for (RequestHandler handler : handlers) {
+          if (handler instanceof RouteHandler) {
+            Route route = ((RouteHandler) handler).getRoute();
+            if (route.getCacheKey().equals("route:" + key)) {
+              route.invalidate();
+            }
+          }
+        }
+      });
+    }
+    staticContentHandler.indexResources(fileWatcher);
 
     if (enableCaching) {
       // warm the cache
+      cacheBuster.warmUp(staticContentHandler.getResourcePaths().stream()
+          .filter(path -> path.endsWith(".mjs") || path.endsWith(".jsx"))
+          .collect(Collectors.toList()));
       preloadHandlers();
     } else {
       Threads.run(() -> {
@@ -381,7 +601,7 @@ public class BowserWebServer {
     }
 
     try {
-      Server server = new ContainerServer(container);
+      Server server = new ContainerServer(container, uploadAllocator);
       new SocketConnection(server).connect(new InetSocketAddress(port), sslContext);
     } catch (Exception e) {
       throw propagate(e);
@@ -408,6 +628,23 @@ public class BowserWebServer {
     });
   }
 
+  private void compileHeaderPolicies() {
+    boolean ssl = sslContext != null;
+    headerPolicy.compile(ssl);
+    staticHeaderPolicy.compile(ssl);
+  }
+
+  private void claimRouteStaticExtensions() {
+    for (RequestHandler handler : handlers) {
+      if (handler instanceof RouteHandler) {
+        String extension = getExtension(((RouteHandler) handler).getRoute().path).toLowerCase();
+        if (Request.isStaticExtension(extension)) {
+          claimedStaticExtensions.add(extension);
+        }
+      }
+    }
+  }
+
   private void checkForDuplicatePaths() {
     for (RequestHandler handler : handlers) {
       if (handler instanceof RouteHandler) {
@@ -446,6 +683,7 @@ public class BowserWebServer {
 
   public static BowserWebServer redirect(int fromPort, int toPort) {
     return new BowserWebServer("Redirect", fromPort, false)
+        .staticFastPath(false)
         .add(new PortRedirect(toPort))
         .start();
   }
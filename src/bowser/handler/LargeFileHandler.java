@@ -0,0 +1,302 @@
+package bowser.handler;
+
+import static ox.util.Utils.propagate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.simpleframework.http.Status;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import bowser.misc.DependencyTracker;
+import bowser.model.Request;
+import bowser.model.RequestHandler;
+import bowser.model.Response;
+
+/**
+ * Serves large media files (videos, pdfs, audio) without loading them onto the heap.
+ *
+ * Only the metadata for these files is cached. The bytes are streamed from the file on every request with
+ * FileChannel.transferTo() into the response's byte channel. That isn't a socket, so the JDK still copies through its
+ * own direct buffer rather than doing a true zero-copy send, but nothing is buffered on the heap. Single ranges,
+ * multiple ranges (multipart/byteranges) and unsatisfiable ranges (416) are all supported. Files which live inside a
+ * jar are streamed from the jar.
+ */
+public class LargeFileHandler implements RequestHandler {
+
+  private static final Map<String, String> CONTENT_TYPES = ImmutableMap.of(
+      "mp4", "video/mp4",
+      "mov", "video/quicktime",
+      "webm", "video/webm",
+      "pdf", "application/pdf",
+      "mp3", "audio/mpeg");
+
+  // more ranges than this in one request are ignored and the whole file is sent instead
+  private static final int MAX_RANGES = 50;
+
+  // marks paths which are small enough to go through the regular static cache
+  private static final LargeFile SMALL = new LargeFile(null, null, 0, 0);
+
+  private final StaticContentHandler staticContentHandler;
+  private final Map<String, LargeFile> files = Maps.newConcurrentMap();
+  private long threshold = 4 * 1024 * 1024;
+  private final DependencyTracker tracker;
+
+  public LargeFileHandler(StaticContentHandler staticContentHandler) {
+    this.staticContentHandler = staticContentHandler;
+    this.tracker = staticContentHandler.getServer().getDependencyTracker();
+    tracker.onInvalidate("large:", files::remove);
+  }
+
+  /**
+   * Media files larger than this are streamed from disk instead of being cached in memory.
+   */
+  public LargeFileHandler threshold(long bytes) {
+    this.threshold = bytes;
+    files.clear();
+    return this;
+  }
+
+  public static boolean isMediaPath(String path) {
+    int i = path.lastIndexOf('.');
+    return i != -1 && CONTENT_TYPES.containsKey(path.substring(i + 1).toLowerCase());
+  }
+
+  @Override
+  public boolean process(Request request, Response response) {
+    String path = staticContentHandler.getServer().getCacheBuster().unhashPath(request.path);
+    if (!isMediaPath(path)) {
+      return false;
+    }
+    LargeFile file = getFile(path);
+    if (file == SMALL) {
+      return false;
+    }
+
+    response.setCompressed(false);
+    response.contentType(file.contentType);
+    response.header("Accept-Ranges", "bytes");
+    response.header("ETag", "\"" + file.etag + "\"");
+    response.response.setDate("Last-Modified", file.lastModified);
+
+    if (isNotModified(request, file)) {
+      response.status(Status.NOT_MODIFIED);
+      return true;
+    }
+
+    String rangeHeader = request.getHeader("Range");
+    if (!matchesIfRange(request, file)) {
+      rangeHeader = null;
+    }
+
+    try {
+      if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+        response.header("Content-Length", String.valueOf(file.length));
+        file.transferTo(0, file.length, response);
+        return true;
+      }
+
+      List<long[]> ranges = parseRanges(rangeHeader.substring(6), file.length);
+      if (ranges == null) {
+        // too many ranges, or ranges which add up to more than the file, so just send the file once
+        response.header("Content-Length", String.valueOf(file.length));
+        file.transferTo(0, file.length, response);
+        return true;
+      }
+      if (ranges.isEmpty()) {
+        response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.header("Content-Range", "bytes */" + file.length);
+        return true;
+      }
+
+      response.status(Status.PARTIAL_CONTENT);
+      if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.header("Content-Length", String.valueOf(range[1] - range[0] + 1));
+        response.header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + file.length);
+        file.transferTo(range[0], range[1] - range[0] + 1, response);
+      } else {
+        writeMultipart(file, ranges, response);
+      }
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+    return true;
+  }
+
+  private void writeMultipart(LargeFile file, List<long[]> ranges, Response response) throws IOException {
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    response.contentType("multipart/byteranges; boundary=" + boundary);
+    OutputStream os = response.getRawOutputStream();
+    for (long[] range : ranges) {
+      String header = "\r\n--" + boundary + "\r\n"
+          + "Content-Type: " + file.contentType + "\r\n"
+          + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + file.length + "\r\n\r\n";
+      os.write(header.getBytes(StandardCharsets.US_ASCII));
+      file.transferTo(range[0], range[1] - range[0] + 1, response);
+    }
+    os.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static boolean isNotModified(Request request, LargeFile file) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return StaticContentHandler.matchesETag(ifNoneMatch, file.etag);
+    }
+    long since = request.request.getDate("If-Modified-Since");
+    return since > 0 && since >= file.lastModified;
+  }
+
+  /**
+   * A range request with an If-Range header (an ETag or a date) only gets the range if the client's copy is current.
+   */
+  private static boolean matchesIfRange(Request request, LargeFile file) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return StaticContentHandler.matchesETag(ifRange, file.etag);
+    }
+    return request.request.getDate("If-Range") == file.lastModified;
+  }
+
+  /**
+   * Parses a list of byte range specs (ex: "0-99, 200-, -50"), dropping any which can't be satisfied. Returns null if
+   * there are more than MAX_RANGES specs, or if the ranges add up to more bytes than the file has (ex: "0-,0-,0-").
+   */
+  private static List<long[]> parseRanges(String s, long length) {
+    List<long[]> ret = Lists.newArrayList();
+    long total = 0;
+    int count = 0;
+    for (String spec : Splitter.on(',').trimResults().omitEmptyStrings().split(s)) {
+      if (++count > MAX_RANGES) {
+        return null;
+      }
+      int i = spec.indexOf('-');
+      if (i == -1) {
+        continue;
+      }
+      long start, end;
+      try {
+        if (i == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, i));
+          end = i == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(i + 1)), length - 1);
+        }
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (start <= end && start < length) {
+        ret.add(new long[] { start, end });
+        total += end - start + 1;
+        if (total > length) {
+          return null;
+        }
+      }
+    }
+    return ret;
+  }
+
+  private LargeFile getFile(String path) {
+    LargeFile ret = files.get(path);
+    if (ret == null) {
+      long generation = tracker.generation("large:" + path);
+      ret = tracker.track("large:" + path, () -> load(path));
+      if (ret == null) {
+        // misses aren't cached here, otherwise requests for made-up paths would grow this map without bound
+        return SMALL;
+      }
+      if (staticContentHandler.isCachingEnabled()) {
+        files.put(path, ret);
+        if (!tracker.isCurrent("large:" + path, generation)) {
+          files.remove(path);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Returns null if there is no file at the given path.
+   */
+  private LargeFile load(String path) {
+    URL url = staticContentHandler.pathToUrl(path);
+    if (url == null) {
+      return null;
+    }
+    tracker.useFile(url);
+    String contentType = CONTENT_TYPES.get(path.substring(path.lastIndexOf('.') + 1).toLowerCase());
+    try {
+      if (url.getProtocol().equals("file")) {
+        Path file = Paths.get(url.toURI());
+        long length = Files.size(file);
+        return length <= threshold ? SMALL
+            : new LargeFile(file, url, length, Files.getLastModifiedTime(file).toMillis(), contentType);
+      }
+      URLConnection connection = url.openConnection();
+      long length = connection.getContentLengthLong();
+      return length <= threshold ? SMALL : new LargeFile(null, url, length, connection.getLastModified(), contentType);
+    } catch (Exception e) {
+      throw propagate(e);
+    }
+  }
+
+  private static class LargeFile {
+    private final Path file;
+    private final URL url;
+    private final long length, lastModified;
+    private final String contentType, etag;
+
+    private LargeFile(Path file, URL url, long length, long lastModified) {
+      this(file, url, length, lastModified, null);
+    }
+
+    private LargeFile(Path file, URL url, long length, long lastModified, String contentType) {
+      this.file = file;
+      this.url = url;
+      this.length = length;
+      this.lastModified = lastModified / 1000 * 1000;
+      this.contentType = contentType;
+      this.etag = Long.toHexString(lastModified) + "-" + Long.toHexString(length);
+    }
+
+    /**
+     * The file's bytes and the stream written by getRawOutputStream() go into the same response buffer, so the two can
+     * be interleaved (ex: for multipart headers).
+     */
+    private void transferTo(long offset, long count, Response response) throws IOException {
+      if (file != null) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          response.transferFrom(channel, offset, count);
+        }
+      } else {
+        try (InputStream is = url.openStream()) {
+          ByteStreams.skipFully(is, offset);
+          ByteStreams.copy(ByteStreams.limit(is, count), response.getRawOutputStream());
+        }
+      }
+    }
+  }
+
+}
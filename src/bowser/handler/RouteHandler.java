@@ -25,6 +25,12 @@ public class RouteHandler implements RequestHandler {
       return false;
     }
 
+    request.setRoute(route);
+
+    if (route.headerPolicy != null) {
+      route.headerPolicy.apply(request, response);
+    }
+
     if (server.includeRouteDebugInfo) {
       request.put("bowser", route.toJson());
     }
@@ -0,0 +1,205 @@
+package bowser.handler;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import bowser.model.Request;
+import bowser.model.RequestHandler;
+import bowser.model.Response;
+import bowser.model.Route;
+
+import ox.x.XList;
+
+/**
+ * A compiled index over a run of consecutively registered RouteHandlers.
+ *
+ * Routes are bucketed by method and host, and then stored in a segment tree made of literal segments, single-segment
+ * wildcards (* and {name}) and trailing ** globs. A lookup only returns the handlers whose route could possibly match
+ * the request, in registration order. Each candidate still goes through Route.matches(), so the index never changes
+ * which route wins -- it only avoids running every route's regex.
+ *
+ * Routes that the tree can't express (partial-segment wildcards, regex syntax, etc) are kept in a fallback list and
+ * are always returned as candidates.
+ */
+public class RouteIndex implements RequestHandler {
+
+  private static final CharMatcher REGEX_CHARS = CharMatcher.anyOf("\\[](){}?+*|^$");
+
+  private final List<RouteHandler> handlers;
+
+  // key is METHOD + " " + host, where an empty host means the route matches any host
+  private final Map<String, Node> trees = Maps.newHashMap();
+
+  // key is METHOD
+  private final Map<String, BitSet> fallbacks = Maps.newHashMap();
+
+  public RouteIndex(List<RouteHandler> handlers) {
+    this.handlers = ImmutableList.copyOf(handlers);
+    for (int i = 0; i < this.handlers.size(); i++) {
+      add(this.handlers.get(i).getRoute(), i);
+    }
+  }
+
+  private void add(Route route, int index) {
+    String method = Ascii.toUpperCase(route.method);
+    List<String> segments = parse(route.path);
+    if (segments == null) {
+      fallbacks.computeIfAbsent(method, k -> new BitSet()).set(index);
+      return;
+    }
+
+    Node node = trees.computeIfAbsent(method + " " + route.host, k -> new Node());
+    for (int i = 0; i < segments.size(); i++) {
+      String segment = segments.get(i);
+      if (segment.equals("**")) {
+        node.globs.set(index);
+        return;
+      } else if (segment.equals("*") || segment.startsWith("{")) {
+        if (node.wildcard == null) {
+          node.wildcard = new Node();
+        }
+        node = node.wildcard;
+      } else {
+        node = node.literals.computeIfAbsent(segment, k -> new Node());
+      }
+    }
+    node.terminal.set(index);
+  }
+
+  /**
+   * Returns the segments of the given route path, or null if the path can't be expressed in the tree.
+   */
+  private static List<String> parse(String path) {
+    if (!path.startsWith("/")) {
+      return null;
+    }
+    boolean glob = path.contains("**");
+    List<String> segments = Splitter.on('/').omitEmptyStrings().splitToList(path);
+    for (int i = 0; i < segments.size(); i++) {
+      String segment = segments.get(i);
+      if (segment.equals("**")) {
+        if (i != segments.size() - 1) {
+          return null;
+        }
+      } else if (segment.equals("*")) {
+        if (glob) {
+          // Route only expands single wildcards when there is no ** in the path
+          return null;
+        }
+      } else if (segment.startsWith("{") && segment.endsWith("}")) {
+        if (REGEX_CHARS.matchesAnyOf(segment.substring(1, segment.length() - 1))) {
+          return null;
+        }
+      } else if (REGEX_CHARS.matchesAnyOf(segment)) {
+        return null;
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Gets the handlers whose routes might match this request, in the order they were registered.
+   */
+  public XList<RouteHandler> getCandidates(Request request) {
+    return getCandidates(request, request.getMethod());
+  }
+
+  /**
+   * Gets the handlers whose routes might match this request if it had been made with the given method.
+   */
+  public XList<RouteHandler> getCandidates(Request request, String method) {
+    method = Ascii.toUpperCase(method);
+    BitSet matches = new BitSet(handlers.size());
+
+    collect(trees.get(method + " "), request.path, 0, matches);
+    String host = request.getHost();
+    if (host != null && !host.isEmpty()) {
+      collect(trees.get(method + " " + host), request.path, 0, matches);
+    }
+    BitSet fallback = fallbacks.get(method);
+    if (fallback != null) {
+      matches.or(fallback);
+    }
+
+    XList<RouteHandler> ret = XList.createWithCapacity(matches.cardinality());
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      ret.add(handlers.get(i));
+    }
+    return ret;
+  }
+
+  /**
+   * Walks the tree, collecting every route which could match. This errs on the side of including too many routes (for
+   * example, empty segments are skipped) because the regex in Route.matches() has the final say.
+   */
+  private void collect(Node node, String path, int start, BitSet out) {
+    if (node == null) {
+      return;
+    }
+    while (start < path.length() && path.charAt(start) == '/') {
+      start++;
+    }
+
+    out.or(node.globs);
+
+    // a wildcard can match an empty segment
+    if (node.wildcard != null) {
+      collect(node.wildcard, path, start, out);
+    }
+
+    if (start >= path.length()) {
+      out.or(node.terminal);
+      return;
+    }
+
+    int end = path.indexOf('/', start);
+    if (end == -1) {
+      end = path.length();
+    }
+    if (!node.literals.isEmpty()) {
+      collect(node.literals.get(path.substring(start, end)), path, end, out);
+    }
+    if (node.wildcard != null) {
+      collect(node.wildcard, path, end, out);
+    }
+  }
+
+  @Override
+  public boolean process(Request request, Response response) {
+    for (RouteHandler handler : getCandidates(request)) {
+      if (handler.process(request, response)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void load() {
+    handlers.forEach(RouteHandler::load);
+  }
+
+  public List<RouteHandler> getHandlers() {
+    return handlers;
+  }
+
+  @Override
+  public String toString() {
+    return "RouteIndex (" + handlers.size() + " routes)";
+  }
+
+  private static class Node {
+    private final Map<String, Node> literals = Maps.newHashMap();
+    private Node wildcard;
+    private final BitSet terminal = new BitSet();
+    private final BitSet globs = new BitSet();
+  }
+
+}
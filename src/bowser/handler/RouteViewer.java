@@ -8,8 +8,8 @@ import java.util.List;
 import java.util.function.Consumer;
 
 import bowser.model.Controller;
+import bowser.model.Handler;
 import bowser.model.Request;
-import bowser.model.Route;
 import bowser.template.Data;
 import ox.Json;
 import ox.util.Functions;
@@ -35,19 +35,30 @@ public class RouteViewer extends Controller {
   @Override
   public void init() {
     route("GET", route).to("route-viewer.html").data(data);
+    route("GET", route + ".json").to(json);
   }
 
   private final Data data = context -> {
     authenticator.accept(context.request);
+    context.put("controllers", getControllersJson());
+  };
+
+  private final Handler json = (request, response) -> {
+    authenticator.accept(request);
+    response.write(getControllersJson());
+  };
 
+  private Json getControllersJson() {
     List<Controller> controllers = XList.create(getServer().controllers).sortSelf((a,b)->{
       return a.getClass().getSimpleName().compareTo(b.getClass().getSimpleName());
     });
-    context.put("controllers", Json.array(controllers, controller -> {
+    return Json.array(controllers, controller -> {
       return Json.object()
           .with("name", controller.getClass().getSimpleName() + ".java")
-          .with("routes", Json.array(controller.getRoutes(), Route::toJson));
-    }));
-  };
+          .with("routes", Json.array(controller.getRoutes(), route -> {
+            return route.toJson().with("stats", route.stats.toJson());
+          }));
+    });
+  }
 
 }
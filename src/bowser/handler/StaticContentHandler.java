@@ -1,26 +1,47 @@
 package bowser.handler;
 
+import static ox.util.Utils.getExtension;
 import static ox.util.Utils.propagate;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.simpleframework.http.Status;
 
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 
 import bowser.BowserWebServer;
+import bowser.misc.DependencyTracker;
+import bowser.misc.FileWatcher;
+import bowser.misc.Gzip;
+import bowser.misc.ResourceIndex;
 import bowser.misc.SCSSProcessor;
 import bowser.model.Controller;
 import bowser.model.Request;
 import bowser.model.RequestHandler;
 import bowser.model.Response;
+import bowser.template.CSSScoper;
 import bowser.template.Template;
 import ox.IO;
 import ox.Log;
@@ -30,97 +51,267 @@ public class StaticContentHandler implements RequestHandler {
 
   private static final byte[] NO_DATA = new byte[0];
 
+  private static final Map<String, String> DEFAULT_CONTENT_TYPES = ImmutableMap.<String, String>builder()
+      .put("css", "text/css")
+      .put("scss", "text/css")
+      .put("js", "text/javascript")
+      .put("mjs", "text/javascript")
+      .put("svg", "image/svg+xml")
+      .put("jpg", "image/jpeg")
+      .put("jpeg", "image/jpeg")
+      .put("png", "image/png")
+      .put("gif", "image/gif")
+      .put("webp", "image/webp")
+      .put("ico", "image/x-icon")
+      .put("woff", "font/woff")
+      .put("woff2", "font/woff2")
+      .put("ttf", "font/ttf")
+      .put("otf", "font/otf")
+      .put("mp4", "video/mp4")
+      .build();
+
+  // a rough size for an Asset and its headers, so that the asset cache stays bounded even when it holds no bytes itself
+  private static final int ASSET_OVERHEAD = 256;
+
+  // CacheBuster gives these files a new url whenever their content changes
+  private static final Set<String> CACHE_BUSTED_EXTENSIONS = ImmutableSet.of("js", "mjs", "css", "scss");
+
   private BowserWebServer server;
-  private final Map<String, byte[]> cache = Maps.newConcurrentMap();
+
+  // the raw bytes of each asset, keyed by the unhashed request path and weighed by their size
+  private Cache<String, ByteBuffer> cache;
+  private long maxCacheBytes = 256 * 1024 * 1024;
+
+  // paths which we recently failed to find. this is kept separate (and small) so that requests for missing files can't
+  // push real assets out of the cache.
+  private final Cache<String, Boolean> missingCache = CacheBuilder.newBuilder()
+      .maximumSize(10_000)
+      .expireAfterWrite(1, TimeUnit.MINUTES)
+      .recordStats()
+      .build();
+
+  // what we serve for each asset, keyed by the unhashed request path
+  private Cache<String, Asset> assets;
+
+  // extension -> content type
+  private final Map<String, String> contentTypes = Maps.newConcurrentMap();
+
+  // when enabled, cached bytes are kept in direct buffers outside of the heap
+  private boolean offHeap = false;
+  private final AtomicLong offHeapBytes = new AtomicLong();
+
+  // assets can't change while caching is enabled, so they are all last modified when the server started
+  private final long lastModified = System.currentTimeMillis() / 1000 * 1000;
   private final SCSSProcessor scssProcessor;
+  private final CSSScoper cssScoper;
+  private final LargeFileHandler largeFileHandler;
   private boolean enableCaching = true;
 
+  // in watch mode, cached entries are evicted when the files they were built from change
+  private final DependencyTracker tracker;
+
+  // built when the server starts. before that, we ask each Controller directly.
+  private ResourceIndex resourceIndex = null;
+
+  // an optional folder on disk to serve files from, in addition to the controllers' packages
+  private Path fileRoot = null;
+
   public StaticContentHandler(BowserWebServer server) {
     this.server = server;
+    this.tracker = server.getDependencyTracker();
     this.scssProcessor = new SCSSProcessor(this, enableCaching);
+    this.cssScoper = new CSSScoper(scssProcessor);
+    this.largeFileHandler = new LargeFileHandler(this);
+    this.cache = buildCache();
+    this.assets = buildAssetCache();
+    this.contentTypes.putAll(DEFAULT_CONTENT_TYPES);
+    tracker.onInvalidate("data:", path -> cache.invalidate(path));
+    tracker.onInvalidate("asset:", key -> assets.invalidate(key));
   }
 
-  @Override
-  public boolean process(Request request, Response response) {
-    String path = request.path;
-    boolean jsWrappedCss = path.endsWith(".scss.js");
+  /**
+   * Serve files with the given extension (ex: "wasm") as the given content type. Content types that are already
+   * compressed (images, video, fonts) are never gzipped.
+   */
+  public StaticContentHandler contentType(String extension, String contentType) {
+    contentTypes.put(extension.toLowerCase(), contentType);
+    assets.invalidateAll();
+    return this;
+  }
 
-    if (jsWrappedCss) {
-      path = server.getCacheBuster().unhashPath(request.path);
-      path = path.substring(0, path.length() - 3);
-    }
+  /**
+   * The most bytes of raw asset data to keep in memory. The least recently used assets are evicted past this. The bytes
+   * of processed assets (ex: compiled scss) are bounded separately by the same amount.
+   */
+  public StaticContentHandler maxCacheBytes(long bytes) {
+    this.maxCacheBytes = bytes;
+    cache.invalidateAll();
+    assets.invalidateAll();
+    this.cache = buildCache();
+    this.assets = buildAssetCache();
+    return this;
+  }
+
+  /**
+   * Keep cached assets (and their gzipped versions) in direct buffers instead of on the heap. Long-lived asset bytes
+   * then don't have to be scanned or copied by the garbage collector, and they are written to the socket without being
+   * copied back onto the heap.
+   */
+  public StaticContentHandler offHeap(boolean b) {
+    this.offHeap = b;
+    cache.invalidateAll();
+    assets.invalidateAll();
+    return this;
+  }
 
-    byte[] data = getData(path);
+  private Cache<String, ByteBuffer> buildCache() {
+    return CacheBuilder.newBuilder()
+        .maximumWeight(maxCacheBytes)
+        .<String, ByteBuffer>weigher((path, data) -> data.capacity() + path.length() * 2)
+        .removalListener(this::onRemoval)
+        .recordStats()
+        .build();
+  }
 
-    if (data == null) {
-      return false;
+  private Cache<String, Asset> buildAssetCache() {
+    return CacheBuilder.newBuilder()
+        .maximumWeight(maxCacheBytes)
+        // an untransformed body is the same buffer as the raw bytes, which are already weighed (and owned) by the raw
+        // cache. so only the bytes that the asset holds by itself count here.
+        .<String, Asset>weigher((key, asset) -> (asset.transformed ? asset.body.capacity() : 0) + key.length() * 2
+            + ASSET_OVERHEAD)
+        .removalListener((RemovalNotification<String, Asset> notification) -> {
+          Asset asset = notification.getValue();
+          if (asset.transformed) {
+            release(asset.body);
+          }
+          release(asset.gzipped);
+        })
+        .build();
+  }
+
+  private void onRemoval(RemovalNotification<String, ByteBuffer> notification) {
+    release(notification.getValue());
+    if (notification.wasEvicted()) {
+      // these were derived from the evicted bytes, so don't let them outlive it
+      assets.invalidate(notification.getKey());
+      assets.invalidate(notification.getKey() + ".js");
     }
+  }
 
-    if (path.endsWith(".css") || path.endsWith(".scss")) {
-      response.contentType("text/css");
-    } else if (path.endsWith(".js")) {
-      response.contentType("text/javascript");
-    } else if (path.endsWith(".mjs")) {
-      data = server.getCacheBuster().hashMJSImports(data).getBytes(StandardCharsets.UTF_8);
-      response.contentType("text/javascript");
-    } else if (path.endsWith(".mp4")) {
-      response.setCompressed(false);
-      response.contentType("video/mp4");
-    } else if (path.endsWith(".svg")) {
-      response.contentType("image/svg+xml");
+  /**
+   * Wraps bytes that are about to be cached, copying them off of the heap if we are in off-heap mode.
+   */
+  private ByteBuffer store(byte[] data) {
+    if (!offHeap) {
+      return ByteBuffer.wrap(data);
+    }
+    ByteBuffer ret = ByteBuffer.allocateDirect(data.length);
+    ret.put(data).flip();
+    offHeapBytes.addAndGet(data.length);
+    return ret.asReadOnlyBuffer();
+  }
+
+  private void release(ByteBuffer buffer) {
+    // direct buffers are freed when they are garbage collected, we just have to stop counting them
+    if (buffer != null && buffer.isDirect()) {
+      offHeapBytes.addAndGet(-buffer.capacity());
     }
+  }
 
-    if (path.endsWith(".jpg") || path.endsWith(".png") || path.endsWith(".webp") || path.endsWith(".woff2") || path.endsWith(".ttf")
-        || path.endsWith(".gif") || path.endsWith(".otf") || path.endsWith(".woff")) {
-      response.setCompressed(false);
-      if (enableCaching) {
-        response.cacheFor(1, TimeUnit.DAYS);
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] ret = new byte[buffer.remaining()];
+    buffer.duplicate().get(ret);
+    return ret;
+  }
+
+  /**
+   * Also serve static files out of this folder on disk.
+   */
+  public StaticContentHandler fileRoot(Path fileRoot) {
+    this.fileRoot = fileRoot.toAbsolutePath().normalize();
+    return this;
+  }
+
+  @Override
+  public boolean process(Request request, Response response) {
+    String key = server.getCacheBuster().unhashPath(request.path);
+
+    Asset asset = assets.getIfPresent(key);
+    if (asset == null) {
+      if (!key.endsWith(".scss.js") && largeFileHandler.process(request, response)) {
+        return true;
       }
-    } else if (path.endsWith(".svg")) {
-      if (enableCaching) {
-        response.cacheFor(1, TimeUnit.DAYS);
+      long generation = tracker.generation("asset:" + key);
+      asset = tracker.track("asset:" + key, () -> loadAsset(key));
+      if (asset == null) {
+        return false;
       }
-    } else if (path.endsWith(".js") || path.endsWith(".mjs") || path.endsWith(".css") || path.endsWith(".scss")) {
       if (enableCaching) {
-        // because we have cache busting for these files, we can set the longest possible cache duration
-        response.cacheFor(365, TimeUnit.DAYS);
+        assets.put(key, asset);
+        if (!tracker.isCurrent("asset:" + key, generation)) {
+          // one of its files changed while it was loading
+          assets.invalidate(key);
+        }
       }
     }
 
-    if (path.endsWith(".scss")) {
-      data = scssProcessor.process(request.getOriginalPath(), data);
-      if (jsWrappedCss) {
-        String wrapped = "window.importCSS(`/* " + path + " */\n" + new String(data, StandardCharsets.UTF_8) + "`);";
-        data = wrapped.getBytes(StandardCharsets.UTF_8);
-        response.contentType("text/javascript");
-      }
+    if (asset.contentType != null) {
+      response.contentType(asset.contentType);
+    }
+    if (!asset.compressible) {
+      response.setCompressed(false);
+    }
+    if (asset.cacheControl != null) {
+      response.header("Cache-Control", asset.cacheControl);
+    }
+    if (isLastModifiedKnown()) {
+      response.response.setDate("Last-Modified", lastModified);
     }
 
+    ByteBuffer body = asset.body;
     Pair<Long, Long> range = request.getRange();
-    InputStream is;
+    if (range != null && !matchesIfRange(request, asset.etag)) {
+      // the client's partial copy is stale, so send the whole thing
+      range = null;
+    }
+    if (range != null) {
+      response.setCompressed(false);
+    }
+    // the gzipped and identity representations need different strong ETags
+    response.header("ETag", "\"" + asset.etag + (response.isCompressed() ? "-gz" : "") + "\"");
+
+    if (isNotModified(request, asset.etag)) {
+      response.status(Status.NOT_MODIFIED);
+      return true;
+    }
 
     response.header("Accept-Ranges", "bytes");
     if (range == null) {
-      if (!response.isCompressed()) {
-        response.header("Content-Length", data.length + "");
+      if (response.isCompressed()) {
+        // serve the precompressed bytes as-is rather than gzipping the asset on every request
+        body = getGzipped(key, asset);
       }
-      is = new ByteArrayInputStream(data);
+      response.header("Content-Length", body.remaining() + "");
     } else {
-      response.status(Status.PARTIAL_CONTENT);
-      Long end = range.b;
-      if (end == null) {
-        end = (long) data.length - 1;
+      // byte ranges refer to the uncompressed asset
+      int length = body.remaining();
+      long end = range.b == null ? length - 1 : Math.min(range.b, length - 1);
+      if (range.a >= length || range.a > end) {
+        response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.header("Content-Range", "bytes */" + length);
+        return true;
       }
+      response.status(Status.PARTIAL_CONTENT);
       long len = end - range.a + 1;
-      if (!response.isCompressed()) {
-        response.header("Content-Length", len + "");
-      }
-      response.header("Content-Range", "bytes " + range.a + "-" + end + "/" + data.length);
-      is = new ByteArrayInputStream(data, range.a.intValue(), (int) len);
+      response.header("Content-Length", len + "");
+      response.header("Content-Range", "bytes " + range.a + "-" + end + "/" + length);
+      body = body.duplicate();
+      body.position(range.a.intValue()).limit((int) (range.a + len));
     }
 
     try {
-      IO.from(is).to(response.getOutputStream());
+      response.writeRaw(body);
     } catch (Throwable e) {
       e = Throwables.getRootCause(e);
       if (e instanceof ClosedChannelException || "Stream has been closed".equals(e.getMessage())
@@ -129,7 +320,7 @@ public class StaticContentHandler implements RequestHandler {
       } else if ("Response content complete".equals(e.getMessage())) {
         // ignore
       } else {
-        Log.debug("Problem processing: " + path);
+        Log.debug("Problem processing: " + key);
         Log.debug("type: " + e.getClass());
         Log.debug("message: " + e.getMessage());
         throw propagate(e);
@@ -139,31 +330,172 @@ public class StaticContentHandler implements RequestHandler {
     return true;
   }
 
+  /**
+   * Builds the response for an asset: its final bytes (after any processing) and the headers that go with them.
+   */
+  private Asset loadAsset(String key) {
+    boolean jsWrappedCss = key.endsWith(".scss.js");
+    String path = jsWrappedCss ? key.substring(0, key.length() - 3) : key;
+
+    ByteBuffer raw = getBuffer(path, null);
+    if (raw == null) {
+      return null;
+    }
+
+    String extension = getExtension(path).toLowerCase();
+    String contentType = contentTypes.get(extension);
+    ByteBuffer body = raw;
+    if (extension.equals("mjs") && !server.getCacheBuster().isImportMapEnabled()) {
+      body = ByteBuffer.wrap(server.getCacheBuster().hashMJSImports(toArray(raw)).getBytes(StandardCharsets.UTF_8));
+    } else if (extension.equals("scss")) {
+      byte[] data = scssProcessor.process(path, toArray(raw));
+      if (jsWrappedCss) {
+        String wrapped = "window.importCSS(`/* " + path + " */\n" + new String(data, StandardCharsets.UTF_8) + "`);";
+        data = wrapped.getBytes(StandardCharsets.UTF_8);
+        contentType = "text/javascript";
+      }
+      body = ByteBuffer.wrap(data);
+    }
+    boolean transformed = body != raw;
+    if (transformed && enableCaching) {
+      body = store(toArray(body));
+    }
+
+    String cacheControl = null;
+    // in watch mode, unhashed urls can change at any time so clients have to revalidate them with the ETag
+    if (enableCaching && !tracker.isEnabled()) {
+      if (CACHE_BUSTED_EXTENSIONS.contains(extension)) {
+        // because we have cache busting for these files, we can set the longest possible cache duration
+        cacheControl = "max-age=" + TimeUnit.DAYS.toSeconds(365);
+      } else if (contentType != null && (contentType.startsWith("image/") || contentType.startsWith("font/"))) {
+        cacheControl = "max-age=" + TimeUnit.DAYS.toSeconds(1);
+      }
+    }
+
+    String etag = Hashing.murmur3_32().hashBytes(body.duplicate()).toString();
+    return new Asset(body, transformed, contentType, cacheControl, Gzip.isCompressible(contentType), etag);
+  }
+
+  private boolean isNotModified(Request request, String etag) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matchesETag(ifNoneMatch, etag);
+    }
+    if (isLastModifiedKnown()) {
+      long since = request.request.getDate("If-Modified-Since");
+      return since > 0 && since >= lastModified;
+    }
+    return false;
+  }
+
+  /**
+   * A range request with an If-Range header only gets the range if the client's copy is still current.
+   */
+  private boolean matchesIfRange(Request request, String etag) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"")) {
+      return matchesETag(ifRange, etag);
+    }
+    return isLastModifiedKnown() && request.request.getDate("If-Range") >= lastModified;
+  }
+
+  /**
+   * True if no asset has changed since the server started.
+   */
+  private boolean isLastModifiedKnown() {
+    return enableCaching && !tracker.isEnabled();
+  }
+
+  static boolean matchesETag(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String tag : Splitter.on(',').trimResults().omitEmptyStrings().split(header)) {
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      tag = CharMatcher.is('"').trimFrom(tag);
+      if (tag.endsWith("-gz")) {
+        tag = tag.substring(0, tag.length() - 3);
+      }
+      if (tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the gzipped version of an asset, compressing it at most once when caching is enabled. If the asset is served
+   * unmodified and there is a prebuilt .gz file next to it, that file is used instead.
+   */
+  private ByteBuffer getGzipped(String key, Asset asset) {
+    if (!enableCaching) {
+      // the body can change on every request here, so favor speed over the smallest output
+      return ByteBuffer.wrap(Gzip.compressOnce(toArray(asset.body)));
+    }
+    synchronized (asset) {
+      if (asset.gzipped == null) {
+        URL url = asset.transformed ? null : pathToUrl(key + ".gz");
+        asset.gzipped = store(url != null ? IO.from(url).toByteArray() : Gzip.compress(toArray(asset.body)));
+      }
+      return asset.gzipped;
+    }
+  }
+
   public byte[] getData(String path) {
     return getData(path, null);
   }
 
   public byte[] getData(String path, Controller controller) {
+    ByteBuffer buffer = getBuffer(path, controller);
+    if (buffer == null) {
+      return null;
+    }
+    return buffer.hasArray() ? buffer.array() : toArray(buffer);
+  }
+
+  private ByteBuffer getBuffer(String path, Controller controller) {
     path = server.getCacheBuster().unhashPath(path);
 
-    byte[] data = cache.get(path);
+    ByteBuffer buffer = cache.getIfPresent(path);
+    if (buffer != null) {
+      tracker.use("data:" + path);
+      return buffer;
+    }
 
-    if (data == NO_DATA) {
+    if (missingCache.getIfPresent(path) != null) {
       return null;
     }
 
-    if (data == null) {
-      data = load(path, controller);
-      if (enableCaching) {
-        cache.put(path, data);
-      }
-    }
+    String unhashedPath = path;
+    long generation = tracker.generation("data:" + path);
+    byte[] data = tracker.track("data:" + path, () -> load(unhashedPath, controller));
 
     if (data == NO_DATA) {
+      // in watch mode, a missing file can show up at any time
+      if (enableCaching && !tracker.isEnabled()) {
+        missingCache.put(path, Boolean.TRUE);
+      }
       return null;
     }
 
-    return data;
+    if (!enableCaching) {
+      return ByteBuffer.wrap(data);
+    }
+    buffer = store(data);
+    cache.put(path, buffer);
+    if (!tracker.isCurrent("data:" + path, generation)) {
+      // the file changed while it was loading
+      cache.invalidate(path);
+    }
+    return buffer;
   }
 
   private byte[] load(String path, Controller controller) {
@@ -175,12 +507,14 @@ public class StaticContentHandler implements RequestHandler {
     if (controller != null) {
       URL url = controller.getResource(path);
       if (url != null) {
+        tracker.useFile(url);
         return IO.from(url).toByteArray();
       }
     }
 
     URL url = pathToUrl(path);
     if (url != null) {
+      tracker.useFile(url);
       return IO.from(url).toByteArray();
     }
 
@@ -197,24 +531,133 @@ public class StaticContentHandler implements RequestHandler {
       path = path.substring(1);
     }
 
-    for (Controller c : server.controllers) {
-      URL url = c.getResource(path);
+    if (resourceIndex != null) {
+      URL url = resourceIndex.get(path);
       if (url != null) {
         return url;
       }
+    } else {
+      for (Controller c : server.controllers) {
+        URL url = c.getResource(path);
+        if (url != null) {
+          return url;
+        }
+      }
+    }
+
+    if (fileRoot != null) {
+      Path file = fileRoot.resolve(path).normalize();
+      if (file.startsWith(fileRoot) && Files.isRegularFile(file)) {
+        try {
+          return file.toUri().toURL();
+        } catch (MalformedURLException e) {
+          throw propagate(e);
+        }
+      }
     }
     return null;
   }
 
+  /**
+   * Indexes all of the Controllers' resources so that finding a file doesn't require asking every Controller. If a
+   * FileWatcher is given, the index is kept up to date as files are added and removed.
+   */
+  public StaticContentHandler indexResources(FileWatcher watcher) {
+    // the folders are registered with the watcher during the same walk that builds the index
+    ResourceIndex index = new ResourceIndex(server.controllers, watcher);
+    if (watcher != null) {
+      if (fileRoot != null) {
+        try (Stream<Path> paths = Files.walk(fileRoot)) {
+          paths.filter(Files::isDirectory).forEach(watcher::watch);
+        } catch (IOException e) {
+          throw propagate(e);
+        }
+      }
+    }
+    this.resourceIndex = index;
+    return this;
+  }
+
+  /**
+   * The paths of every resource the Controllers can serve, or an empty set if the resources haven't been indexed.
+   */
+  public Set<String> getResourcePaths() {
+    return resourceIndex == null ? ImmutableSet.of() : resourceIndex.getPaths();
+  }
+
+  /**
+   * Records that whatever is currently being computed (ex: a compiled stylesheet) depends on the asset at this path.
+   */
+  public void useData(String path) {
+    tracker.use("data:" + server.getCacheBuster().unhashPath(path));
+  }
+
   public StaticContentHandler setCachingEnabled(boolean b) {
     this.enableCaching = b;
     scssProcessor.setCachingEnabled(b);
     if (!b) {
-      cache.clear();
+      cache.invalidateAll();
+      missingCache.invalidateAll();
+      assets.invalidateAll();
     }
     return this;
   }
 
+  public boolean isCachingEnabled() {
+    return enableCaching;
+  }
+
+  /**
+   * Hits, misses and evictions for the asset cache.
+   */
+  public CacheStats getCacheStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Hits and misses for the cache of paths that couldn't be found.
+   */
+  public CacheStats getMissingCacheStats() {
+    return missingCache.stats();
+  }
+
+  public long getCachedBytes() {
+    return cache.asMap().values().stream().mapToLong(data -> data.capacity()).sum();
+  }
+
+  /**
+   * The number of bytes of cached assets (including gzipped versions) held in direct buffers.
+   */
+  public long getOffHeapBytes() {
+    return offHeapBytes.get();
+  }
+
+  public LargeFileHandler getLargeFileHandler() {
+    return largeFileHandler;
+  }
+
+  /**
+   * An asset as we serve it: the final bytes after any processing plus everything we need for the response headers.
+   */
+  private static class Asset {
+    private final ByteBuffer body;
+    private final boolean transformed, compressible;
+    private final String contentType, cacheControl, etag;
+
+    // computed the first time a client accepts gzip
+    private ByteBuffer gzipped = null;
+
+    private Asset(ByteBuffer body, boolean transformed, String contentType, String cacheControl, boolean compressible,
+        String etag) {
+      this.body = body;
+      this.transformed = transformed;
+      this.contentType = contentType;
+      this.cacheControl = cacheControl;
+      this.compressible = compressible;
+      this.etag = etag;
+    }
+  }
+
   public BowserWebServer getServer() {
     return server;
   }
@@ -223,4 +666,8 @@ public class StaticContentHandler implements RequestHandler {
     return scssProcessor;
   }
 
+  public CSSScoper getCssScoper() {
+    return cssScoper;
+  }
+
 }
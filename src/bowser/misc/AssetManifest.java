@@ -0,0 +1,256 @@
+package bowser.misc;
+
+import static ox.util.Utils.propagate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import ox.Log;
+
+/**
+ * A manifest of processed assets which survives restarts, stored in a local cache folder.
+ *
+ * Each entry maps an asset to the fingerprint of its source, the fingerprints of whatever else it was built from, its
+ * hashed path, and (optionally) its processed output. Outputs are stored by the hash of their content in an "objects"
+ * folder. An entry is only used if all of the recorded fingerprints still match, so a stale entry is simply recomputed.
+ *
+ * The manifest is an append-only log which is read in one pass at startup, and compacted if it has grown a lot.
+ */
+public class AssetManifest {
+
+  private static final int VERSION = 1;
+
+  private final Path manifestFile, objectsDir;
+  private final Map<String, Entry> entries = Maps.newConcurrentMap();
+  private DataOutputStream out = null;
+
+  public AssetManifest(Path dir) {
+    this.manifestFile = dir.resolve("manifest");
+    this.objectsDir = dir.resolve("objects");
+    try {
+      Files.createDirectories(objectsDir);
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+    load();
+  }
+
+  public static String fingerprint(byte[] data) {
+    return Hashing.murmur3_128().hashBytes(data).toString();
+  }
+
+  public Entry get(String key) {
+    return entries.get(key);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Reads the processed output of an entry, or returns null if it has gone missing.
+   */
+  public byte[] getOutput(Entry entry) {
+    if (entry.outputHash.isEmpty()) {
+      return null;
+    }
+    Path file = objectsDir.resolve(entry.outputHash);
+    try {
+      return Files.isRegularFile(file) ? Files.readAllBytes(file) : null;
+    } catch (IOException e) {
+      Log.error(e);
+      return null;
+    }
+  }
+
+  /**
+   * Records an entry. The output is optional.
+   */
+  public void put(String key, String sourceFingerprint, Map<String, String> dependencies, String hashedPath,
+      byte[] output) {
+    String outputHash = "";
+    try {
+      if (output != null) {
+        outputHash = fingerprint(output);
+        Path file = objectsDir.resolve(outputHash);
+        if (!Files.exists(file)) {
+          // write to a temp file first so that a crash can't leave a partial object behind
+          Path temp = Files.createTempFile(objectsDir, outputHash, ".tmp");
+          Files.write(temp, output);
+          Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+      }
+      Entry entry = new Entry(sourceFingerprint, ImmutableMap.copyOf(dependencies), hashedPath, outputHash);
+      if (!entry.equals(entries.put(key, entry))) {
+        append(key, entry);
+      }
+    } catch (IOException e) {
+      Log.error(e);
+    }
+  }
+
+  private synchronized void append(String key, Entry entry) throws IOException {
+    if (out == null) {
+      boolean exists = Files.exists(manifestFile);
+      out = open(manifestFile, true);
+      if (!exists) {
+        out.writeInt(VERSION);
+      }
+    }
+    write(out, key, entry);
+    out.flush();
+  }
+
+  private void load() {
+    if (!Files.exists(manifestFile)) {
+      return;
+    }
+    int records = 0;
+    boolean truncated = false;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestFile)))) {
+      if (in.readInt() != VERSION) {
+        Log.info("Ignoring asset manifest from an older version.");
+        Files.delete(manifestFile);
+        deleteUnusedObjects();
+        return;
+      }
+      while (true) {
+        String key;
+        try {
+          key = in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        String source = in.readUTF();
+        String hashedPath = in.readUTF();
+        String outputHash = in.readUTF();
+        int n = in.readInt();
+        ImmutableMap.Builder<String, String> dependencies = ImmutableMap.builder();
+        for (int i = 0; i < n; i++) {
+          dependencies.put(in.readUTF(), in.readUTF());
+        }
+        entries.put(key, new Entry(source, dependencies.build(), hashedPath, outputHash));
+        records++;
+      }
+    } catch (IOException e) {
+      // a truncated record at the end (ex: from a crash) just means we lose that one record
+      Log.warn("Problem reading asset manifest: " + e);
+      truncated = true;
+    }
+
+    // rewrite the log if it is mostly stale records, or if it ends with a partial record we can't append after
+    if (truncated || records > 2 * entries.size() + 100) {
+      compact();
+    }
+  }
+
+  private synchronized void compact() {
+    Path temp = manifestFile.resolveSibling("manifest.tmp");
+    try (DataOutputStream out = open(temp, false)) {
+      out.writeInt(VERSION);
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        write(out, e.getKey(), e.getValue());
+      }
+    } catch (IOException e) {
+      Log.error(e);
+      return;
+    }
+    try {
+      Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Log.error(e);
+      return;
+    }
+    deleteUnusedObjects();
+  }
+
+  /**
+   * Deletes the objects which no entry refers to anymore (ex: the outputs of stale records), along with any temp files
+   * left behind by a crash.
+   */
+  private void deleteUnusedObjects() {
+    Set<String> live = entries.values().stream().map(entry -> entry.outputHash).collect(Collectors.toSet());
+    try (Stream<Path> files = Files.list(objectsDir)) {
+      files.filter(file -> !live.contains(file.getFileName().toString())).forEach(file -> {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          Log.error(e);
+        }
+      });
+    } catch (IOException e) {
+      Log.error(e);
+    }
+  }
+
+  private static DataOutputStream open(Path file, boolean append) throws IOException {
+    OutputStream os = append
+        ? Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+        : Files.newOutputStream(file);
+    return new DataOutputStream(new BufferedOutputStream(os));
+  }
+
+  private static void write(DataOutputStream out, String key, Entry entry) throws IOException {
+    out.writeUTF(key);
+    out.writeUTF(entry.sourceFingerprint);
+    out.writeUTF(entry.hashedPath);
+    out.writeUTF(entry.outputHash);
+    out.writeInt(entry.dependencies.size());
+    for (Map.Entry<String, String> e : entry.dependencies.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeUTF(e.getValue());
+    }
+  }
+
+  public static class Entry {
+    public final String sourceFingerprint;
+
+    /**
+     * What else the asset was built from, and the fingerprint each one had at the time.
+     */
+    public final Map<String, String> dependencies;
+
+    public final String hashedPath;
+    private final String outputHash;
+
+    private Entry(String sourceFingerprint, Map<String, String> dependencies, String hashedPath, String outputHash) {
+      this.sourceFingerprint = sourceFingerprint;
+      this.dependencies = dependencies;
+      this.hashedPath = hashedPath;
+      this.outputHash = outputHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry e = (Entry) o;
+      return sourceFingerprint.equals(e.sourceFingerprint) && dependencies.equals(e.dependencies)
+          && hashedPath.equals(e.hashedPath) && outputHash.equals(e.outputHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return sourceFingerprint.hashCode() ^ hashedPath.hashCode();
+    }
+  }
+
+}
@@ -2,16 +2,35 @@ package bowser.misc;
 
 import static com.google.common.base.Preconditions.checkState;
 
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 import bowser.handler.StaticContentHandler;
 import bowser.model.Controller;
 
+import ox.Log;
+import ox.Threads;
 import ox.util.Regex;
+import ox.x.XList;
 
 /**
  * Changes resource paths on the fly in order to bust caches for old files.
@@ -21,6 +40,9 @@ import ox.util.Regex;
  */
 public class CacheBuster {
 
+  private static final String IMPORT_REGEX = "import \\\"(.*)\\\";| from \\\"(.*)\\\";|import\\(\"(.*)\"\\)";
+  private static final Pattern IMPORT_PATTERN = Pattern.compile(IMPORT_REGEX);
+
   private final StaticContentHandler resourceLoader;
 
   // used for unhashing a path
@@ -34,15 +56,26 @@ public class CacheBuster {
 
   private boolean inlineSCSS = false;
 
+  private boolean importMap = false;
+
+  private AssetManifest manifest = null;
+
+  private final DependencyTracker tracker;
+
+  // the module graph: module -> the paths it imports, and path -> the modules which import it
+  private final Map<String, Set<String>> imports = Maps.newConcurrentMap();
+  private final Map<String, Set<String>> importers = Maps.newConcurrentMap();
+
+  // the paths being hashed on the current thread, used to detect import cycles
+  private final ThreadLocal<Set<String>> inProgress = ThreadLocal.withInitial(Sets::newHashSet);
+
   public CacheBuster(StaticContentHandler resourceLoader) {
     this.resourceLoader = resourceLoader;
+    this.tracker = resourceLoader.getServer().getDependencyTracker();
+    tracker.onInvalidate("hash:", key -> invalidate(key.substring(key.indexOf(':') + 1)));
   }
 
   public String hashPath(String path, Controller controller) {
-    return hashPath(path, controller, 0);
-  }
-
-  private String hashPath(String path, Controller controller, int depth) {
     if (path.startsWith("http:") || path.startsWith("https:")) {
       return path;
     }
@@ -53,11 +86,64 @@ public class CacheBuster {
     String ret = cache.get(key);
 
     if (ret != null) {
+      tracker.use("hash:" + key);
       return ret;
     }
 
     // Log.debug(Thread.currentThread() + " LOAD: " + key);
 
+    Set<String> active = inProgress.get();
+    if (!active.add(key)) {
+      if (controller == null) {
+        // unwind to where this module started being hashed, and hash its whole cycle there
+        throw new ImportCycle(normalizePath(path));
+      }
+      Log.warn("Import cycle detected at " + path + ", this import will not be cache busted.");
+      return path;
+    }
+    long generation = tracker.generation("hash:" + key);
+    try {
+      if (controller != null && isSharedModule(path, controller)) {
+        // modules are only cycle-aware (and only loaded once by the browser) when they have a single hashed path
+        ret = tracker.track("hash:" + key, () -> hashPath(path, null));
+      } else {
+        ret = tracker.track("hash:" + key, () -> computeHashedPath(key, path, controller));
+      }
+    } catch (ImportCycle e) {
+      if (controller != null || !e.module.equals(normalizePath(path))) {
+        throw e;
+      }
+      ret = tracker.track("hash:" + key, () -> hashCycle(normalizePath(path)));
+    } finally {
+      active.remove(key);
+    }
+
+    cache.put(key, ret);
+    if (!tracker.isCurrent("hash:" + key, generation)) {
+      // a file changed while this was being hashed
+      invalidate(path);
+    }
+    // Log.debug(Thread.currentThread() + " DONE: " + key);
+
+    return ret;
+  }
+
+  /**
+   * Whether the given module resolves to the same file for the Controller as it does without one.
+   */
+  private boolean isSharedModule(String path, Controller controller) {
+    if (!path.endsWith(".mjs") && !path.endsWith(".jsx")) {
+      return false;
+    }
+    if (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    URL url = controller.getResource(path);
+    return url == null || url.toString().equals(String.valueOf(resourceLoader.pathToUrl(path)));
+  }
+
+  private String computeHashedPath(String key, String path, Controller controller) {
+    String ret;
     if (!path.startsWith("/")) {
       path = "/" + path;
     }
@@ -65,8 +151,21 @@ public class CacheBuster {
     if (data == null) {
       ret = path;
     } else {
-      if (path.endsWith(".mjs") || path.endsWith(".jsx")) {
-        data = hashMJSImports(data, depth).getBytes(StandardCharsets.UTF_8);
+      boolean useManifest = manifest != null && !tracker.isEnabled() && isProcessed(path);
+      String manifestKey = getManifestKey(key);
+      if (useManifest) {
+        ret = getFromManifest(manifestKey, path, data);
+        if (ret != null) {
+          nameMap.put(ret, path);
+          return ret;
+        }
+      }
+      byte[] source = data;
+      if (importMap && (path.endsWith(".mjs") || path.endsWith(".jsx"))) {
+        // the body is served as-is, so its hash only changes when the module itself does
+        setImports(normalizePath(path), parseImports(new String(data, StandardCharsets.UTF_8)));
+      } else if (path.endsWith(".mjs") || path.endsWith(".jsx")) {
+        data = hashMJSImports(data, path, ImmutableSet.of()).getBytes(StandardCharsets.UTF_8);
       } else if (path.endsWith(".scss")) {
         data = resourceLoader.getScssProcessor().process(path, data);
       }
@@ -75,12 +174,78 @@ public class CacheBuster {
       checkState(i != -1, path);
       ret = path.substring(0, i) + "-" + hash + path.substring(i);
       nameMap.put(ret, path);
+      if (useManifest) {
+        addToManifest(manifestKey, path, source, ret);
+      }
     }
+    return ret;
+  }
 
-    cache.put(key, ret);
-    // Log.debug(Thread.currentThread() + " DONE: " + key);
+  /**
+   * Only files which have to be processed are worth recording, since hashing a plain file costs about as much as
+   * fingerprinting it.
+   */
+  private static boolean isProcessed(String path) {
+    return path.endsWith(".mjs") || path.endsWith(".jsx") || path.endsWith(".scss");
+  }
 
-    return ret;
+  /**
+   * The settings which change how a file is processed are part of its key, so that entries recorded under other
+   * settings are never reused.
+   */
+  private String getManifestKey(String key) {
+    return (importMap ? "importmap" : "rewrite") + (inlineSCSS ? "+inline" : "") + "|" + key;
+  }
+
+  /**
+   * Returns the hashed path from the manifest, or null if the file (or anything it was built from) has changed.
+   */
+  private String getFromManifest(String key, String path, byte[] source) {
+    AssetManifest.Entry entry = manifest.get(key);
+    if (entry == null || !entry.sourceFingerprint.equals(AssetManifest.fingerprint(source))) {
+      return null;
+    }
+    if (path.endsWith(".scss")) {
+      for (Map.Entry<String, String> e : entry.dependencies.entrySet()) {
+        if (!e.getValue().equals(fingerprintOf(e.getKey()))) {
+          return null;
+        }
+      }
+    } else {
+      // a rewritten module is only current if each of its imports still hashes to what was written into it
+      for (Map.Entry<String, String> e : entry.dependencies.entrySet()) {
+        if (!e.getValue().isEmpty() && !e.getValue().equals(hashPath(e.getKey(), null))) {
+          return null;
+        }
+      }
+      setImports(normalizePath(path), entry.dependencies.keySet());
+    }
+    return entry.hashedPath;
+  }
+
+  /**
+   * Only the hashed path is recorded, never a processed body. Compiled stylesheets are persisted by the SCSSProcessor.
+   * A rewritten module is just its source with each import swapped for a hashed path that is already cached by then, so
+   * redoing that substitution is cheaper than reading a stored copy back from disk.
+   */
+  private void addToManifest(String key, String path, byte[] source, String hashedPath) {
+    Map<String, String> dependencies = Maps.newLinkedHashMap();
+    if (path.endsWith(".scss")) {
+      for (String url : resourceLoader.getScssProcessor().getImports(path)) {
+        dependencies.put(url, fingerprintOf(url));
+      }
+    } else {
+      // in import map mode the body doesn't depend on what it imports, but the imports are still kept for the graph
+      for (String child : getImports(path)) {
+        dependencies.put(child, importMap ? "" : hashPath(child, null));
+      }
+    }
+    manifest.put(key, AssetManifest.fingerprint(source), dependencies, hashedPath, null);
+  }
+
+  private String fingerprintOf(String path) {
+    byte[] data = resourceLoader.getData(path);
+    return data == null ? "" : AssetManifest.fingerprint(data);
   }
 
   public String unhashPath(String path) {
@@ -90,19 +255,26 @@ public class CacheBuster {
   static int counter = 0;
 
   public String hashMJSImports(byte[] data) {
-    return hashMJSImports(data, 0);
+    if (importMap) {
+      return new String(data, StandardCharsets.UTF_8);
+    }
+    return hashMJSImports(data, null, ImmutableSet.of());
   }
 
   /**
-   * Goes through an mjs file and replaces paths with hashed ones.
+   * Goes through an mjs file and replaces paths with hashed ones, except for the given paths. If the module's path is
+   * given, its imports are recorded in the module graph.
    */
-  private String hashMJSImports(byte[] data, int depth) {
+  private String hashMJSImports(byte[] data, String module, Set<String> unhashed) {
     String s = new String(data, StandardCharsets.UTF_8);
 
-    String ret = Regex.replaceAll("import \\\"(.*)\\\";| from \\\"(.*)\\\";|import\\(\"(.*)\"\\)", s,
+    if (module != null) {
+      setImports(normalizePath(module), parseImports(s));
+    }
+
+    String ret = Regex.replaceAll(IMPORT_REGEX, s,
         match -> {
           String fullMatch = match.group(0);
-          // Log.debug(Joiner.on(' ').join(Collections.nCopies(depth, " ")) + fullMatch);
           int start = match.start();
 
           int groupIndex = match.group(1) != null ? 1 : match.group(2) != null ? 2 : 3;
@@ -110,7 +282,10 @@ public class CacheBuster {
           int i = match.start(groupIndex) - start;
           int j = match.end(groupIndex) - start;
 
-          String path = hashPath(match.group(groupIndex), null, depth + 1);
+          if (unhashed.contains(normalizePath(match.group(groupIndex)))) {
+            return fullMatch;
+          }
+          String path = hashPath(match.group(groupIndex), null);
           if (path.endsWith(".scss")) {
             if (inlineSCSS) {
               byte[] styleData = resourceLoader.getData(path, null);
@@ -129,6 +304,206 @@ public class CacheBuster {
     return ret;
   }
 
+  /**
+   * Hashes every module in the given module's import cycle as one unit, so that each one's hash doesn't depend on which
+   * module in the cycle happened to be requested first.
+   *
+   * The cycle's hash covers each member's source with its imports hashed, except for imports of other members (whose
+   * hashes aren't known yet). Each member's hashed path then comes from the cycle's hash and its own path.
+   */
+  private String hashCycle(String module) {
+    // the strongly connected component: every module reachable from this one which can also reach back to it
+    Map<String, List<String>> graph = discoverGraph(ImmutableList.of(module));
+    Map<String, Set<String>> reverse = Maps.newHashMap();
+    graph.forEach((from, children) -> children
+        .forEach(to -> reverse.computeIfAbsent(to, t -> Sets.newHashSet()).add(from)));
+    Set<String> members = Sets.newTreeSet();
+    Deque<String> queue = new ArrayDeque<>();
+    queue.add(module);
+    while (!queue.isEmpty()) {
+      String next = queue.poll();
+      if (members.add(next)) {
+        queue.addAll(reverse.getOrDefault(next, ImmutableSet.of()));
+      }
+    }
+
+    // a member that started being hashed further up the stack has to hash the cycle instead, since it is still waiting
+    // for its imports to be hashed
+    Set<String> active = inProgress.get();
+    for (String member : members) {
+      if (!member.equals(module) && active.stream().anyMatch(key -> normalizePath(key).equals(member))) {
+        throw new ImportCycle(member);
+      }
+    }
+
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (String member : members) {
+      byte[] data = resourceLoader.getData(member, null);
+      String body = data == null ? "" : hashMJSImports(data, member, members);
+      hasher.putString(member, StandardCharsets.UTF_8).putString(body, StandardCharsets.UTF_8);
+    }
+    String cycleHash = hasher.hash().toString();
+
+    Map<String, String> cache = getOrCreateCache();
+    String ret = null;
+    for (String member : members) {
+      String hash = Hashing.murmur3_32().hashString(cycleHash + member, StandardCharsets.UTF_8).toString();
+      int i = member.lastIndexOf('.');
+      String hashed = member.substring(0, i) + "-" + hash + member.substring(i);
+      nameMap.put(hashed, member);
+      if (member.equals(module)) {
+        ret = hashed;
+      } else {
+        cache.put(member, hashed);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Finds every module that the given modules import (directly or transitively) by scanning their imports, without
+   * hashing anything.
+   */
+  private Map<String, List<String>> discoverGraph(Collection<String> modules) {
+    Map<String, List<String>> ret = Maps.newHashMap();
+    Deque<String> queue = new ArrayDeque<>();
+    modules.forEach(module -> queue.add(normalizePath(module)));
+    while (!queue.isEmpty()) {
+      String module = queue.poll();
+      if (ret.containsKey(module)) {
+        continue;
+      }
+      List<String> children = ImmutableList.of();
+      if (module.endsWith(".mjs") || module.endsWith(".jsx")) {
+        byte[] data = resourceLoader.getData(module, null);
+        if (data != null) {
+          children = parseImports(new String(data, StandardCharsets.UTF_8));
+        }
+      }
+      ret.put(module, children);
+      queue.addAll(children);
+    }
+    return ret;
+  }
+
+  private static List<String> parseImports(String source) {
+    List<String> ret = Lists.newArrayList();
+    Matcher matcher = IMPORT_PATTERN.matcher(source);
+    while (matcher.find()) {
+      int groupIndex = matcher.group(1) != null ? 1 : matcher.group(2) != null ? 2 : 3;
+      ret.add(normalizePath(matcher.group(groupIndex)));
+    }
+    return ret;
+  }
+
+  private static String normalizePath(String path) {
+    return path.startsWith("/") ? path : "/" + path;
+  }
+
+  private void setImports(String module, Collection<String> paths) {
+    Set<String> old = imports.put(module, ImmutableSet.copyOf(paths));
+    if (old != null) {
+      for (String path : old) {
+        importers.getOrDefault(path, Collections.emptySet()).remove(module);
+      }
+    }
+    for (String path : paths) {
+      importers.computeIfAbsent(path, p -> Sets.newConcurrentHashSet()).add(module);
+    }
+  }
+
+  /**
+   * The paths which the given module imports, as of the last time it was hashed.
+   */
+  public Set<String> getImports(String module) {
+    return imports.getOrDefault(normalizePath(module), ImmutableSet.of());
+  }
+
+  /**
+   * The modules which import the given path.
+   */
+  public Set<String> getImporters(String path) {
+    return ImmutableSet.copyOf(importers.getOrDefault(normalizePath(path), ImmutableSet.of()));
+  }
+
+  /**
+   * Forgets the hashed path of the given file and of every module that imports it (directly or transitively), so that
+   * only those get re-hashed the next time they are used.
+   */
+  public void invalidate(String path) {
+    Set<String> stale = Sets.newHashSet();
+    Deque<String> queue = new ArrayDeque<>();
+    queue.add(normalizePath(path));
+    while (!queue.isEmpty()) {
+      String next = queue.poll();
+      if (stale.add(next)) {
+        queue.addAll(importers.getOrDefault(next, Collections.emptySet()));
+      }
+    }
+    // keys are either a path, or "ControllerName:path"
+    globalCache.keySet().removeIf(key -> stale.contains(normalizePath(key.substring(key.indexOf(':') + 1))));
+  }
+
+  /**
+   * Maps the path of each module that the given modules import (directly or transitively) to its hashed path. This is
+   * what goes into the page's import map when import maps are enabled.
+   */
+  public Map<String, String> getImportMap(Collection<String> modules) {
+    Map<String, String> ret = Maps.newTreeMap();
+    Set<String> seen = Sets.newHashSet();
+    Deque<String> queue = new ArrayDeque<>();
+    modules.forEach(module -> queue.add(normalizePath(module)));
+    while (!queue.isEmpty()) {
+      String path = queue.poll();
+      if (!seen.add(path)) {
+        continue;
+      }
+      String hashed = hashPath(path, null);
+      if (!hashed.equals(path)) {
+        ret.put(path, path.endsWith(".scss") ? hashed + ".js" : hashed);
+      }
+      queue.addAll(getImports(path));
+    }
+    return ret;
+  }
+
+  /**
+   * Hashes the given modules (and everything they import) ahead of time. Modules are hashed from the leaves up, and the
+   * modules at each level don't depend on each other, so they are hashed in parallel.
+   */
+  public void warmUp(Collection<String> modules) {
+    Map<String, List<String>> graph = discoverGraph(modules);
+
+    Map<String, Integer> heights = Maps.newHashMap();
+    graph.keySet().forEach(module -> getHeight(module, graph, heights, Sets.newHashSet()));
+    Map<Integer, XList<String>> levels = new TreeMap<>();
+    heights.forEach((module, height) -> levels.computeIfAbsent(height, h -> XList.create()).add(module));
+    for (XList<String> level : levels.values()) {
+      Threads.get(8).input(level).run(module -> hashPath(module, null));
+    }
+  }
+
+  /**
+   * The length of the longest import chain below this module. Imports that close a cycle are ignored.
+   */
+  private static int getHeight(String module, Map<String, List<String>> graph, Map<String, Integer> heights,
+      Set<String> visiting) {
+    Integer ret = heights.get(module);
+    if (ret != null) {
+      return ret;
+    }
+    if (!visiting.add(module)) {
+      return -1;
+    }
+    int height = 0;
+    for (String child : graph.get(module)) {
+      height = Math.max(height, getHeight(child, graph, heights, visiting) + 1);
+    }
+    visiting.remove(module);
+    heights.put(module, height);
+    return height;
+  }
+
   private Map<String, String> getOrCreateCache() {
     if (cacheEvictionPolicy == CachePolicy.GLOBAL_CACHE) {
       return globalCache;
@@ -155,12 +530,51 @@ public class CacheBuster {
     return this;
   }
 
+  /**
+   * Instead of rewriting the import paths inside of each module, serve modules untouched and have each page map the
+   * paths to their hashed versions with an import map. Changing one module then only changes its own hash, rather than
+   * the hash of everything which imports it. Styles imported by modules are never inlined in this mode.
+   */
+  public CacheBuster importMap() {
+    this.importMap = true;
+    globalCache.clear();
+    return this;
+  }
+
+  /**
+   * Remembers hashed paths (and compiled stylesheets) in the given folder, so that after a restart only the files which
+   * actually changed need to be processed again. Hashed paths aren't taken from the manifest while files are being
+   * watched.
+   */
+  public CacheBuster manifest(Path folder) {
+    this.manifest = new AssetManifest(folder);
+    resourceLoader.getScssProcessor().persist(folder.resolve("scss"));
+    return this;
+  }
+
+  public boolean isImportMapEnabled() {
+    return importMap;
+  }
+
   public void onRequestFinished() {
     if (cacheEvictionPolicy == CachePolicy.REQUEST_BASED_CACHE) {
       threadCache.set(null);
     }
   }
 
+  /**
+   * Thrown when hashing a module runs into a module which is already being hashed on this thread. It unwinds the stack
+   * to the frame that is hashing that module, which then hashes the whole cycle.
+   */
+  private static class ImportCycle extends RuntimeException {
+    private final String module;
+
+    private ImportCycle(String module) {
+      super(module, null, false, false);
+      this.module = module;
+    }
+  }
+
   private static enum CachePolicy {
     GLOBAL_CACHE, REQUEST_BASED_CACHE;
   }
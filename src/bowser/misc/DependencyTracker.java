@@ -0,0 +1,190 @@
+package bowser.misc;
+
+import static ox.util.Utils.propagate;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.SetMultimap;
+
+import ox.Pair;
+
+/**
+ * Records which cache entries were built from which files (and from which other cache entries), so that when a file
+ * changes, exactly the entries that depend on it -- directly or through any number of imports -- can be evicted.
+ *
+ * Keys are plain strings with a prefix for the kind of entry (ex: "file:/src/foo.scss", "scss:/foo.scss"). A cache
+ * computes an entry inside of track(), and calls use() whenever it serves an entry that was already cached. Anything
+ * used while an entry is being computed becomes one of its dependencies.
+ *
+ * A file can change while an entry is being computed from it, after which the entry is already stale. A cache guards
+ * against this by reading generation() before calling track(), and dropping the entry it stored if isCurrent() says
+ * that the key was invalidated in the meantime.
+ *
+ * Tracking is off until enable() is called, and then it only costs a little bookkeeping when entries are computed.
+ */
+public class DependencyTracker {
+
+  // key -> the entries that were computed from it
+  private final SetMultimap<String, String> dependents = HashMultimap.create();
+
+  // entry -> the keys that were used to compute it
+  private final SetMultimap<String, String> dependencies = HashMultimap.create();
+
+  // key -> how many times it has been invalidated
+  private final Map<String, Long> generations = Maps.newConcurrentMap();
+
+  private final ThreadLocal<Deque<String>> stack = ThreadLocal.withInitial(ArrayDeque::new);
+
+  private final List<Pair<String, Consumer<String>>> listeners = new CopyOnWriteArrayList<>();
+
+  private volatile boolean enabled = false;
+
+  public DependencyTracker enable() {
+    this.enabled = true;
+    return this;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Computes the entry for the given key, recording everything that is used along the way as its dependencies.
+   */
+  public <T> T track(String key, Supplier<T> computation) {
+    if (!enabled) {
+      return computation.get();
+    }
+    use(key);
+    synchronized (this) {
+      for (String dependency : dependencies.removeAll(key)) {
+        dependents.remove(dependency, key);
+      }
+    }
+    Deque<String> frames = stack.get();
+    frames.push(key);
+    try {
+      return computation.get();
+    } finally {
+      frames.pop();
+    }
+  }
+
+  /**
+   * Returns a number which changes every time the given key is invalidated.
+   */
+  public long generation(String key) {
+    return enabled ? generations.getOrDefault(key, 0L) : 0;
+  }
+
+  /**
+   * Whether the given key hasn't been invalidated since generation() returned the given number.
+   */
+  public boolean isCurrent(String key, long generation) {
+    return generation(key) == generation;
+  }
+
+  /**
+   * Records that the entry currently being computed (if any) depends on the given key.
+   */
+  public void use(String key) {
+    if (!enabled) {
+      return;
+    }
+    String current = stack.get().peek();
+    if (current != null && !current.equals(key)) {
+      synchronized (this) {
+        dependencies.put(current, key);
+        dependents.put(key, current);
+      }
+    }
+  }
+
+  /**
+   * Records that the entry currently being computed depends on the given file, if it is on disk.
+   */
+  public void useFile(URL url) {
+    if (enabled && url != null && url.getProtocol().equals("file")) {
+      try {
+        use("file:" + Paths.get(url.toURI()).toAbsolutePath());
+      } catch (URISyntaxException e) {
+        throw propagate(e);
+      }
+    }
+  }
+
+  /**
+   * Invalidates everything that was computed from the given file.
+   */
+  public void invalidateFile(Path file) {
+    invalidate("file:" + file.toAbsolutePath());
+  }
+
+  /**
+   * Invalidates everything that was computed from any file in the given folder.
+   */
+  public void invalidateFolder(Path folder) {
+    String prefix = "file:" + folder.toAbsolutePath() + File.separator;
+    List<String> files;
+    synchronized (this) {
+      files = dependents.keySet().stream().filter(key -> key.startsWith(prefix)).collect(Collectors.toList());
+    }
+    files.forEach(this::invalidate);
+  }
+
+  /**
+   * Calls the listener with every invalidated key that starts with the given prefix.
+   */
+  public DependencyTracker onInvalidate(String prefix, Consumer<String> listener) {
+    listeners.add(Pair.of(prefix, listener));
+    return this;
+  }
+
+  /**
+   * Invalidates the given key along with everything that was computed from it, directly or transitively.
+   */
+  public void invalidate(String key) {
+    Set<String> invalidated = Sets.newLinkedHashSet();
+    synchronized (this) {
+      Deque<String> queue = new ArrayDeque<>();
+      queue.add(key);
+      while (!queue.isEmpty()) {
+        String next = queue.poll();
+        if (invalidated.add(next)) {
+          queue.addAll(dependents.removeAll(next));
+        }
+      }
+      for (String k : invalidated) {
+        for (String dependency : dependencies.removeAll(k)) {
+          dependents.remove(dependency, k);
+        }
+        generations.merge(k, 1L, Long::sum);
+      }
+    }
+
+    for (String k : invalidated) {
+      for (Pair<String, Consumer<String>> listener : listeners) {
+        if (k.startsWith(listener.a)) {
+          listener.b.accept(k.substring(listener.a.length()));
+        }
+      }
+    }
+  }
+
+}
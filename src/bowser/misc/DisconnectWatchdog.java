@@ -0,0 +1,96 @@
+package bowser.misc;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+import bowser.model.Request;
+
+import ox.Log;
+
+/**
+ * A single thread which watches every in-flight request for client disconnects, and cancels + interrupts the handler
+ * of any request whose client has gone away.
+ *
+ * Simple owns the selector and does all of the reads for its sockets, so we can't register for readiness
+ * notifications on them. Instead, all of the watched requests are checked together in one pass every 30ms.
+ *
+ * The thread isn't started until the first request is watched, so servers which never interrupt handlers don't pay
+ * for it.
+ */
+public class DisconnectWatchdog {
+
+  private static final long CHECK_INTERVAL_MILLIS = 30;
+
+  private final Map<Request, Watch> watches = Maps.newConcurrentMap();
+
+  // only used by the watchdog thread
+  private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+  private volatile ScheduledExecutorService executor = null;
+
+  /**
+   * Starts watching the given request, which is being handled by the current thread.
+   */
+  public void watch(Request request) {
+    if (executor == null) {
+      start();
+    }
+    watches.put(request, new Watch(Thread.currentThread(), System.nanoTime()));
+  }
+
+  private synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread ret = new Thread(runnable, "DisconnectWatchdog");
+      ret.setDaemon(true);
+      return ret;
+    });
+    executor.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+    this.executor = executor;
+  }
+
+  public void unwatch(Request request) {
+    watches.remove(request);
+  }
+
+  public int getWatchCount() {
+    return watches.size();
+  }
+
+  private void check() {
+    long now = System.nanoTime();
+    watches.forEach((request, watch) -> {
+      if (now - watch.startNanos < TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MILLIS)) {
+        return;
+      }
+      try {
+        if (request.isAborted(probe) && watches.remove(request, watch)) {
+          request.getCancellationToken().cancel();
+          watch.thread.interrupt();
+        }
+      } catch (Throwable t) {
+        watches.remove(request, watch);
+        Log.error(t);
+      }
+    });
+  }
+
+  private static class Watch {
+    private final Thread thread;
+    private final long startNanos;
+
+    private Watch(Thread thread, long startNanos) {
+      this.thread = thread;
+      this.startNanos = startNanos;
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package bowser.misc;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static ox.util.Utils.propagate;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import com.google.common.collect.Maps;
+
+import ox.Log;
+
+/**
+ * Watches folders on disk and tells its listeners about every file that is created, modified or deleted in them.
+ *
+ * Folders are registered one at a time (WatchService isn't recursive), and the events are delivered on a single daemon
+ * thread.
+ */
+public class FileWatcher {
+
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> folders = Maps.newConcurrentMap();
+  private final List<BiConsumer<WatchEvent.Kind<?>, Path>> listeners = new CopyOnWriteArrayList<>();
+
+  public FileWatcher() {
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+    Thread thread = new Thread(this::processEvents, "FileWatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Starts watching the given folder. Watching a folder more than once has no effect.
+   */
+  public FileWatcher watch(Path folder) {
+    try {
+      WatchKey key = folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      folders.put(key, folder);
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+    return this;
+  }
+
+  /**
+   * The listener is called with the kind of event and the absolute path of the file. An OVERFLOW event (with the path
+   * of the folder) means that events were lost and anything in that folder may have changed.
+   */
+  public FileWatcher onChange(BiConsumer<WatchEvent.Kind<?>, Path> listener) {
+    listeners.add(listener);
+    return this;
+  }
+
+  private void processEvents() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      Path folder = folders.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (folder == null) {
+          continue;
+        }
+        Path path = event.kind() == OVERFLOW ? folder : folder.resolve((Path) event.context());
+        for (BiConsumer<WatchEvent.Kind<?>, Path> listener : listeners) {
+          try {
+            listener.accept(event.kind(), path);
+          } catch (Exception e) {
+            Log.error(e);
+          }
+        }
+      }
+      if (!key.reset()) {
+        folders.remove(key);
+      }
+    }
+  }
+
+}
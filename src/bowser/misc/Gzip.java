@@ -0,0 +1,160 @@
+package bowser.misc;
+
+import static ox.util.Utils.propagate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip helpers which reuse Deflaters instead of paying for native zlib setup (and finalization) on every response.
+ */
+public class Gzip {
+
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  // one idle Deflater per thread
+  private static final ThreadLocal<Deflater> idleDeflaters = new ThreadLocal<>();
+
+  /**
+   * Returns false for content types which are already compressed (images, video, fonts, archives).
+   */
+  public static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return true;
+    }
+    if (contentType.startsWith("text/") || contentType.startsWith("image/svg")) {
+      return true;
+    }
+    if (contentType.startsWith("image/") || contentType.startsWith("video/") || contentType.startsWith("audio/")
+        || contentType.startsWith("font/")) {
+      return false;
+    }
+    switch (contentType) {
+    case "application/zip":
+    case "application/gzip":
+    case "application/x-gzip":
+    case "application/pdf":
+    case "application/octet-stream":
+      return false;
+    default:
+      return true;
+    }
+  }
+
+  /**
+   * Compresses the data at the highest compression level. This is meant for content which gets compressed once and then
+   * served many times.
+   */
+  public static byte[] compress(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      ByteArrayOutputStream ret = new ByteArrayOutputStream(data.length / 2 + 64);
+      try (PooledOutputStream os = new PooledOutputStream(ret, deflater)) {
+        os.released = true; // this Deflater doesn't belong to the pool
+        os.write(data);
+      }
+      return ret.toByteArray();
+    } catch (IOException e) {
+      throw propagate(e);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Compresses the data at the default level with a pooled Deflater. This is meant for content which is only served
+   * once (ex: when caching is disabled), where the time spent compressing matters more than the size.
+   */
+  public static byte[] compressOnce(byte[] data) {
+    try {
+      ByteArrayOutputStream ret = new ByteArrayOutputStream(data.length / 2 + 64);
+      try (OutputStream os = wrap(ret)) {
+        os.write(data);
+      }
+      return ret.toByteArray();
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Wraps the given stream with a gzip stream which borrows a pooled Deflater. The Deflater is returned to the pool
+   * when the stream is closed.
+   */
+  public static OutputStream wrap(OutputStream os) throws IOException {
+    return new PooledOutputStream(os, borrow());
+  }
+
+  private static Deflater borrow() {
+    Deflater ret = idleDeflaters.get();
+    if (ret == null) {
+      return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+    idleDeflaters.set(null);
+    ret.reset();
+    return ret;
+  }
+
+  private static void release(Deflater deflater) {
+    if (idleDeflaters.get() == null) {
+      idleDeflaters.set(deflater);
+    } else {
+      deflater.end();
+    }
+  }
+
+  /**
+   * The same format as GZIPOutputStream, but using a Deflater that we supply.
+   */
+  private static class PooledOutputStream extends DeflaterOutputStream {
+
+    private final CRC32 crc = new CRC32();
+    private boolean finished = false, released = false;
+
+    private PooledOutputStream(OutputStream os, Deflater deflater) throws IOException {
+      super(os, deflater, 8192);
+      out.write(HEADER);
+    }
+
+    @Override
+    public synchronized void write(byte[] buf, int off, int len) throws IOException {
+      super.write(buf, off, len);
+      crc.update(buf, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      super.finish();
+      writeInt((int) crc.getValue());
+      writeInt((int) def.getBytesRead());
+    }
+
+    private void writeInt(int i) throws IOException {
+      out.write(i & 0xff);
+      out.write((i >> 8) & 0xff);
+      out.write((i >> 16) & 0xff);
+      out.write((i >> 24) & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!released) {
+          released = true;
+          release(def);
+        }
+      }
+    }
+  }
+
+}
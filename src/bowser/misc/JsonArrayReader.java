@@ -0,0 +1,142 @@
+package bowser.misc;
+
+import static com.google.common.base.Preconditions.checkState;
+import static ox.util.Utils.propagate;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ox.Json;
+
+/**
+ * Reads the elements of a top-level JSON array one at a time from a stream.
+ *
+ * Only the text of the current element is held in memory, so a handler can work through a very large array (ex: a
+ * bulk import) with bounded memory.
+ */
+public class JsonArrayReader implements Iterator<Json>, Closeable {
+
+  private final Reader reader;
+  private final StringBuilder element = new StringBuilder();
+
+  // one character of lookahead, or -2 if there isn't one
+  private int peeked = -2;
+
+  private boolean started = false, finished = false;
+
+  public JsonArrayReader(InputStream is) {
+    this.reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (finished) {
+      return false;
+    }
+    if (!started) {
+      checkState(skipWhitespace() == '[', "Expected a JSON array.");
+      read();
+      started = true;
+      if (skipWhitespace() == ']') {
+        finish();
+      }
+    }
+    return !finished;
+  }
+
+  @Override
+  public Json next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    element.setLength(0);
+    int depth = 0;
+    boolean inString = false;
+    while (true) {
+      int c = peek();
+      checkState(c != -1, "Unexpected end of JSON array.");
+      if (inString) {
+        element.append((char) read());
+        if (c == '\\') {
+          element.append((char) read());
+        } else if (c == '"') {
+          inString = false;
+        }
+        continue;
+      }
+      if (depth == 0 && (c == ',' || c == ']')) {
+        break;
+      }
+      if (c == '"') {
+        inString = true;
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']') {
+        depth--;
+      }
+      element.append((char) read());
+    }
+
+    int c = read();
+    if (c == ']') {
+      finish();
+    } else if (skipWhitespace() == ']') {
+      throw new IllegalStateException("Trailing comma in JSON array.");
+    }
+
+    return new Json(element.toString().trim());
+  }
+
+  private void finish() {
+    finished = true;
+    close();
+  }
+
+  private int skipWhitespace() {
+    int c = peek();
+    while (c != -1 && Character.isWhitespace(c)) {
+      read();
+      c = peek();
+    }
+    return c;
+  }
+
+  private int peek() {
+    if (peeked == -2) {
+      peeked = readChar();
+    }
+    return peeked;
+  }
+
+  private int read() {
+    int ret = peek();
+    peeked = -2;
+    return ret;
+  }
+
+  private int readChar() {
+    try {
+      return reader.read();
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      reader.close();
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+}
@@ -0,0 +1,343 @@
+package bowser.misc;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static ox.util.Utils.getExtension;
+import static ox.util.Utils.propagate;
+
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import bowser.model.Controller;
+
+import ox.Log;
+
+/**
+ * Maps every resource path that a Controller can serve to its URL, so that finding a static file is a single hash
+ * lookup instead of a classloader lookup per Controller.
+ *
+ * The index is built by walking each Controller's package once (on disk or inside a jar), taking mapped folders into
+ * account. When there are multiple Controllers which can serve the same path, the first one wins, just like looping
+ * over them would.
+ *
+ * When watching is enabled, the package folders on disk are watched, and files which are added or removed are added to
+ * or removed from the index one at a time. The whole index is only rebuilt if the watcher loses events.
+ */
+public class ResourceIndex {
+
+  private final List<Controller> controllers;
+
+  private volatile Index index;
+
+  private final FileWatcher watcher;
+  private final Set<Path> watchedFolders = Sets.newConcurrentHashSet();
+
+  public ResourceIndex(List<Controller> controllers) {
+    this(controllers, null);
+  }
+
+  /**
+   * If a watcher is given, the Controllers' package folders on disk are watched as they are walked, and the index is
+   * kept up to date as files are added or removed.
+   */
+  public ResourceIndex(List<Controller> controllers, FileWatcher watcher) {
+    this.controllers = controllers;
+    this.watcher = watcher;
+    this.index = build();
+    if (watcher != null) {
+      watcher.onChange(this::onChange);
+    }
+  }
+
+  /**
+   * Returns the URL of the resource at the given path (relative to the Controllers' packages), or null if no
+   * Controller has it.
+   */
+  public URL get(String path) {
+    if (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    Index index = getIndex();
+
+    if (!isSimplePath(path)) {
+      return scan(path, controllers.size());
+    }
+
+    Entry entry = index.entries.get(path);
+    int limit = entry == null ? controllers.size() : entry.ordinal;
+    if (!index.unindexed.isEmpty()) {
+      // these Controllers live somewhere we couldn't walk (ex: a custom classloader), so we still ask them directly
+      URL url = scan(path, limit, index.unindexed);
+      if (url != null) {
+        return url;
+      }
+    }
+    return entry == null ? null : entry.url;
+  }
+
+  public int size() {
+    return getIndex().entries.size();
+  }
+
+  /**
+   * Every indexed path, relative to the Controllers' packages.
+   */
+  public Set<String> getPaths() {
+    return Collections.unmodifiableSet(getIndex().entries.keySet());
+  }
+
+  private Index getIndex() {
+    Index ret = this.index;
+    if (ret == null) {
+      ret = this.index = build();
+    }
+    return ret;
+  }
+
+  private void onChange(WatchEvent.Kind<?> kind, Path path) {
+    if (kind == ENTRY_MODIFY) {
+      return;
+    }
+    Index index = this.index;
+    if (kind == OVERFLOW || index == null) {
+      // we don't know what changed, so rebuild lazily on the next lookup
+      this.index = null;
+      return;
+    }
+    synchronized (index) {
+      if (kind == ENTRY_CREATE && Files.isDirectory(path)) {
+        try (Stream<Path> paths = Files.walk(path)) {
+          paths.forEach(p -> {
+            if (Files.isDirectory(p)) {
+              if (watchedFolders.add(p)) {
+                watcher.watch(p);
+              }
+            } else {
+              update(index, p);
+            }
+          });
+        } catch (IOException e) {
+          Log.error(e);
+          this.index = null;
+        }
+      } else {
+        update(index, path);
+      }
+    }
+  }
+
+  /**
+   * Re-resolves the paths that a file which was just created or deleted could be served under. If it was a folder that
+   * got deleted, everything that was under it is re-resolved.
+   */
+  private void update(Index index, Path file) {
+    for (Root root : index.roots) {
+      if (!file.startsWith(root.folder)) {
+        continue;
+      }
+      String relativePath = toRequestPath(root.folder.relativize(file).toString().replace('\\', '/'),
+          controllers.get(root.ordinal).getFolders());
+      if (relativePath == null) {
+        continue;
+      }
+      List<String> paths = Lists.newArrayList(relativePath);
+      if (!index.entries.containsKey(relativePath) && !Files.exists(file)) {
+        String prefix = relativePath + "/";
+        index.entries.keySet().stream().filter(p -> p.startsWith(prefix)).forEach(paths::add);
+      }
+      for (String path : paths) {
+        Entry entry = null;
+        for (int i = 0; i < controllers.size(); i++) {
+          URL url = controllers.get(i).getResource(path);
+          if (url != null) {
+            entry = new Entry(url, i);
+            break;
+          }
+        }
+        if (entry == null) {
+          index.entries.remove(path);
+        } else {
+          index.entries.put(path, entry);
+        }
+      }
+    }
+  }
+
+  private URL scan(String path, int limit) {
+    return scan(path, limit, controllers);
+  }
+
+  private URL scan(String path, int limit, List<Controller> candidates) {
+    for (Controller c : candidates) {
+      if (controllers.indexOf(c) >= limit) {
+        break;
+      }
+      URL url = c.getResource(path);
+      if (url != null) {
+        return url;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Paths which would need to be normalized (ex: "a/../b") aren't indexed.
+   */
+  private static boolean isSimplePath(String path) {
+    return !path.isEmpty() && !path.contains("..") && !path.contains("./") && !path.contains("//")
+        && path.indexOf('\\') == -1;
+  }
+
+  private Index build() {
+    Index ret = new Index();
+    for (int i = 0; i < controllers.size(); i++) {
+      Controller controller = controllers.get(i);
+      try {
+        if (!index(controller, i, ret)) {
+          ret.unindexed.add(controller);
+        }
+      } catch (Exception e) {
+        Log.error(e);
+        ret.unindexed.add(controller);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Returns false if one of the Controller's package roots couldn't be walked.
+   */
+  private boolean index(Controller controller, int ordinal, Index index) throws Exception {
+    Class<?> c = controller.getClass();
+    ClassLoader classLoader = c.getClassLoader();
+    if (classLoader == null) {
+      return false;
+    }
+    String packageDir = c.getName().substring(0, c.getName().lastIndexOf('.') + 1).replace('.', '/');
+
+    boolean ret = true;
+    Map<String, URL> urls = Maps.newLinkedHashMap();
+    Set<URL> roots = Sets.newLinkedHashSet(Collections.list(classLoader.getResources(packageDir)));
+    // jars that were built without directory entries won't show up above, but the Controller's own jar still counts
+    URL classFile = c.getResource(c.getName().substring(packageDir.length()) + ".class");
+    if (classFile != null) {
+      String s = classFile.toString();
+      roots.add(new URL(s.substring(0, s.lastIndexOf('/') + 1)));
+    }
+    for (URL root : roots) {
+      if (root.getProtocol().equals("file")) {
+        Path folder = Paths.get(root.toURI());
+        indexFolder(folder, urls);
+        index.roots.add(new Root(folder, ordinal));
+      } else if (root.getProtocol().equals("jar")) {
+        indexJar(root, packageDir, urls);
+      } else {
+        ret = false;
+      }
+    }
+
+    Map<String, String> folders = controller.getFolders();
+    urls.forEach((relativePath, url) -> {
+      String path = toRequestPath(relativePath, folders);
+      if (path != null) {
+        index.entries.putIfAbsent(path, new Entry(url, ordinal));
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * A mapped extension can only be found under its folder, so this undoes the mapping to get the path that is
+   * requested. Returns null if the file is outside of its extension's folder.
+   */
+  private static String toRequestPath(String relativePath, Map<String, String> folders) {
+    String folder = folders.get(getExtension(relativePath));
+    if (folder == null) {
+      return relativePath;
+    }
+    return relativePath.startsWith(folder + "/") ? relativePath.substring(folder.length() + 1) : null;
+  }
+
+  private void indexFolder(Path root, Map<String, URL> urls) throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.forEach(path -> {
+        if (Files.isDirectory(path)) {
+          if (watcher != null && watchedFolders.add(path)) {
+            watcher.watch(path);
+          }
+        } else if (!path.toString().endsWith(".class")) {
+          String relativePath = root.relativize(path).toString().replace('\\', '/');
+          try {
+            urls.putIfAbsent(relativePath, path.toUri().toURL());
+          } catch (IOException e) {
+            throw propagate(e);
+          }
+        }
+      });
+    }
+  }
+
+  private void indexJar(URL root, String packageDir, Map<String, URL> urls) throws IOException {
+    JarURLConnection connection = (JarURLConnection) root.openConnection();
+    connection.setUseCaches(false);
+    try (JarFile jar = connection.getJarFile()) {
+      Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (!entry.isDirectory() && name.startsWith(packageDir) && !name.endsWith(".class")) {
+          String relativePath = name.substring(packageDir.length());
+          urls.putIfAbsent(relativePath, new URL(root, relativePath));
+        }
+      }
+    }
+  }
+
+  private static class Index {
+    // updated by the watcher thread while requests are reading it
+    private final Map<String, Entry> entries = Maps.newConcurrentMap();
+    private final List<Controller> unindexed = Lists.newArrayList();
+
+    // the package folders on disk, which are the only places that files can be added or removed
+    private final List<Root> roots = Lists.newArrayList();
+  }
+
+  private static class Root {
+    private final Path folder;
+    private final int ordinal;
+
+    private Root(Path folder, int ordinal) {
+      this.folder = folder;
+      this.ordinal = ordinal;
+    }
+  }
+
+  private static class Entry {
+    private final URL url;
+    private final int ordinal;
+
+    private Entry(URL url, int ordinal) {
+      this.url = url;
+      this.ordinal = ordinal;
+    }
+  }
+
+}
@@ -1,19 +1,33 @@
 package bowser.misc;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static ox.util.Utils.normalize;
 import static ox.util.Utils.propagate;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import bowser.handler.StaticContentHandler;
+import bowser.model.RouteStats;
 
 import io.bit3.jsass.CompilationException;
 import io.bit3.jsass.Compiler;
@@ -28,42 +42,214 @@ import io.bit3.jsass.importer.Import;
 public class SCSSProcessor {
 
   private final StaticContentHandler staticContentHandler;
-  private Compiler compiler;
   private final Options options = new Options();
-  private final Map<String, byte[]> cache = Maps.newConcurrentMap();
+  private final Map<String, Compiled> cache = Maps.newConcurrentMap();
+
+  // native compilers are created lazily, up to maxCompilers, and then reused
+  private final BlockingQueue<Compiler> compilers = new LinkedBlockingQueue<>();
+  private final AtomicInteger compilerCount = new AtomicInteger();
+  private volatile int maxCompilers = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  // builds in progress, keyed by path and content, so that concurrent requests for a stylesheet share one compile
+  private final Map<String, CompletableFuture<byte[]>> inFlight = Maps.newConcurrentMap();
+
+  private final Map<String, RouteStats> compileStats = Maps.newConcurrentMap();
+
+  // compiled output from previous runs of the server
+  private AssetManifest persisted = null;
 
   private boolean enableCaching;
 
+  private final DependencyTracker tracker;
+
+  private final ThreadLocal<List<String>> currentImports = new ThreadLocal<>();
+
   public SCSSProcessor(StaticContentHandler staticContentHandler, boolean enableCaching) {
     this.staticContentHandler = staticContentHandler;
     this.enableCaching = enableCaching;
     this.options.setImporters(ImmutableList.of(this::doImport));
+    // there is no server when this is used on its own (ex: CSSScoper.main), and then nothing is tracked
+    this.tracker = staticContentHandler == null ? new DependencyTracker()
+        : staticContentHandler.getServer().getDependencyTracker();
+    tracker.onInvalidate("scss:", cache::remove);
   }
 
+  /**
+   * Compiled output is reused for as long as the stylesheet and everything it imports are unchanged.
+   *
+   * When caching is enabled, files only change while they are being watched, and then the DependencyTracker evicts
+   * exactly the stylesheets which imported a changed file. Otherwise, each cached stylesheet is checked against the
+   * fingerprint of its current contents and import closure, so only the ones that actually changed get recompiled.
+   */
   public byte[] process(String path, byte[] data) {
     if (this.enableCaching) {
-      byte[] ret = cache.get(path);
-      if (ret != null) {
+      Compiled compiled = cache.get(path);
+      if (compiled != null) {
+        tracker.use("scss:" + path);
+        return compiled.css;
+      }
+    }
+
+    // if the same version of this stylesheet is already being built on another thread, wait for that result instead.
+    // the wait happens outside of track(), which would otherwise reset the dependencies the other thread recorded.
+    String flightKey = path + ":" + AssetManifest.fingerprint(data);
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    CompletableFuture<byte[]> existing = inFlight.putIfAbsent(flightKey, future);
+    if (existing != null) {
+      try {
+        byte[] ret = existing.join();
+        tracker.use("scss:" + path);
         return ret;
+      } catch (CompletionException e) {
+        throw propagate(e.getCause());
+      }
+    }
+    try {
+      byte[] ret = build(path, data);
+      future.complete(ret);
+      return ret;
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(flightKey, future);
+    }
+  }
+
+  private byte[] build(String path, byte[] data) {
+    long generation = tracker.generation("scss:" + path);
+    // the stylesheet itself and everything it imports become dependencies of the compiled output
+    byte[] css = tracker.track("scss:" + path, () -> {
+      staticContentHandler.useData(path);
+      if (!enableCaching) {
+        Compiled compiled = cache.get(path);
+        if (compiled != null && compiled.fingerprint.equals(fingerprint(data, compiled.imports))) {
+          return compiled.css;
+        }
+      }
+      if (persisted != null) {
+        byte[] ret = loadPersisted(path, data);
+        if (ret != null) {
+          return ret;
+        }
+      }
+      return compile(path, data);
+    });
+    if (!tracker.isCurrent("scss:" + path, generation)) {
+      // an import changed while this was compiling, so the cached output may already be stale
+      cache.remove(path);
+    }
+    return css;
+  }
+
+  /**
+   * Combines the contents of a stylesheet with the contents of each file it imports.
+   */
+  private String fingerprint(byte[] data, List<String> imports) {
+    Hasher hasher = Hashing.murmur3_128().newHasher().putBytes(data);
+    for (String url : imports) {
+      byte[] importData = staticContentHandler.getData(url);
+      hasher.putString(url, StandardCharsets.UTF_8).putInt(importData == null ? -1 : importData.length);
+      if (importData != null) {
+        hasher.putBytes(importData);
       }
     }
+    return hasher.hash().toString();
+  }
+
+  private byte[] compile(String path, byte[] data) {
     String input = new String(data, StandardCharsets.UTF_8);
+    Stopwatch watch = Stopwatch.createStarted();
+    byte[] ret = null;
+    Compiler compiler = borrowCompiler();
     try {
-      if (compiler == null) {
-        compiler = new Compiler();
+      List<String> imports = Lists.newArrayList();
+      currentImports.set(imports);
+      final Output output;
+      try {
+        output = compiler.compileString(input, null, null, options);
+      } finally {
+        currentImports.remove();
       }
-      final Output output = compiler.compileString(input, null, null, options);
-      byte[] ret = normalize(output.getCss()).getBytes(StandardCharsets.UTF_8);
-      if (enableCaching) {
-        cache.put(path, ret);
+      ret = normalize(output.getCss()).getBytes(StandardCharsets.UTF_8);
+      cache.put(path, new Compiled(fingerprint(data, imports), ImmutableList.copyOf(imports), ret));
+      if (persisted != null) {
+        Map<String, String> dependencies = Maps.newLinkedHashMap();
+        for (String url : imports) {
+          dependencies.put(url, fingerprintOf(url));
+        }
+        persisted.put(path, getSourceKey(data), dependencies, "", ret);
       }
       return ret;
     } catch (CompilationException e) {
       throw propagate(e);
+    } finally {
+      compilers.add(compiler);
+      compileStats.computeIfAbsent(path, p -> new RouteStats())
+          .record(watch.elapsed(TimeUnit.MICROSECONDS), ret == null ? 0 : ret.length, ret == null);
+    }
+  }
+
+  /**
+   * Returns the output from a previous run, if the stylesheet, its imports and the compiler options are all unchanged.
+   */
+  private byte[] loadPersisted(String path, byte[] data) {
+    AssetManifest.Entry entry = persisted.get(path);
+    if (entry == null || !entry.sourceFingerprint.equals(getSourceKey(data))) {
+      return null;
+    }
+    for (Map.Entry<String, String> e : entry.dependencies.entrySet()) {
+      if (!e.getValue().equals(fingerprintOf(e.getKey()))) {
+        return null;
+      }
+    }
+    byte[] ret = persisted.getOutput(entry);
+    if (ret != null) {
+      List<String> imports = ImmutableList.copyOf(entry.dependencies.keySet());
+      cache.put(path, new Compiled(fingerprint(data, imports), imports, ret));
+    }
+    return ret;
+  }
+
+  /**
+   * Changing the compiler options changes the output, so they are part of the key for persisted output.
+   */
+  private String getSourceKey(byte[] data) {
+    return AssetManifest.fingerprint(data) + ":" + options.getOutputStyle() + ":" + options.getPrecision() + ":"
+        + options.isSourceComments() + ":" + options.getIndent() + ":" + options.getLinefeed();
+  }
+
+  private String fingerprintOf(String url) {
+    byte[] data = staticContentHandler.getData(url);
+    return data == null ? "" : AssetManifest.fingerprint(data);
+  }
+
+  private Compiler borrowCompiler() {
+    Compiler ret = compilers.poll();
+    if (ret != null) {
+      return ret;
+    }
+    while (true) {
+      int count = compilerCount.get();
+      if (count >= maxCompilers) {
+        break;
+      }
+      if (compilerCount.compareAndSet(count, count + 1)) {
+        return new Compiler();
+      }
+    }
+    try {
+      return compilers.take();
+    } catch (InterruptedException e) {
+      throw propagate(e);
     }
   }
 
   private Collection<Import> doImport(String url, Import previous) {
+    List<String> imports = currentImports.get();
+    if (imports != null) {
+      imports.add(url);
+    }
     byte[] data = staticContentHandler.getData(url);
     String source = new String(data, StandardCharsets.UTF_8);
 
@@ -78,10 +264,53 @@ public class SCSSProcessor {
     return Collections.singleton(ret);
   }
 
+  /**
+   * The files which the given stylesheet imported (directly or transitively) the last time it was compiled.
+   */
+  public List<String> getImports(String path) {
+    Compiled compiled = cache.get(path);
+    return compiled == null ? ImmutableList.of() : compiled.imports;
+  }
+
+  /**
+   * Keeps compiled output in the given folder, so that after a restart a stylesheet is only compiled again if it, one of
+   * its imports, or the compiler options changed.
+   */
+  public SCSSProcessor persist(Path folder) {
+    this.persisted = new AssetManifest(folder);
+    return this;
+  }
+
+  /**
+   * The maximum number of stylesheets that can be compiled at the same time.
+   */
+  public SCSSProcessor maxCompilers(int n) {
+    checkArgument(n > 0, n);
+    this.maxCompilers = n;
+    return this;
+  }
+
+  /**
+   * Compile times, output sizes and failures for each stylesheet (one "request" per compile).
+   */
+  public Map<String, RouteStats> getCompileStats() {
+    return Collections.unmodifiableMap(compileStats);
+  }
+
   public void setCachingEnabled(boolean b) {
+    // entries are validated against their fingerprints while caching is off, so there is no need to clear them
     this.enableCaching = b;
-    if (!b) {
-      cache.clear();
+  }
+
+  private static class Compiled {
+    private final String fingerprint;
+    private final List<String> imports;
+    private final byte[] css;
+
+    private Compiled(String fingerprint, List<String> imports, byte[] css) {
+      this.fingerprint = fingerprint;
+      this.imports = imports;
+      this.css = css;
     }
   }
 
@@ -0,0 +1,469 @@
+package bowser.misc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static ox.util.Utils.propagate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.simpleframework.util.buffer.Allocator;
+import org.simpleframework.util.buffer.Buffer;
+import org.simpleframework.util.buffer.BufferAllocator;
+import org.simpleframework.util.buffer.BufferException;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import bowser.model.Request;
+
+import ox.Log;
+import ox.Reflection;
+
+/**
+ * Allocates the buffers that Simple reads request bodies (and multipart parts) into.
+ *
+ * Bodies are kept in memory until they grow past the memory threshold, at which point they are spooled to a temp file.
+ * The request and per-part size limits are enforced as the bytes are read off of the socket. Once an upload goes over a
+ * limit, the rest of its bytes are read and discarded (rather than buffered) so that the request can still be answered
+ * with a 413 (see isTooLarge()) instead of having its connection dropped.
+ *
+ * A spooled file belongs to its request from the time the request is dispatched (see hold()) until the server is done
+ * handling it (see release()), when it is deleted. Files which never made it to a request (ex: the client disconnected
+ * mid-upload) are deleted once they haven't been written to for a few minutes.
+ */
+public class UploadAllocator implements Allocator {
+
+  private static final String PREFIX = "bowser-upload";
+
+  private int memoryThreshold = 1024 * 1024;
+  private long maxRequestBytes = Long.MAX_VALUE;
+  private long maxPartBytes = Long.MAX_VALUE;
+  private long fileLifetimeMillis = TimeUnit.MINUTES.toMillis(5);
+  private Path tempDir = null;
+
+  // spooled file -> the buffer which is writing it
+  private final Map<Path, SpoolBuffer> files = Maps.newConcurrentMap();
+
+  /**
+   * Bodies larger than this are spooled to disk.
+   */
+  public UploadAllocator memoryThreshold(int bytes) {
+    this.memoryThreshold = bytes;
+    return this;
+  }
+
+  public UploadAllocator maxRequestBytes(long bytes) {
+    this.maxRequestBytes = bytes;
+    return this;
+  }
+
+  public UploadAllocator maxPartBytes(long bytes) {
+    this.maxPartBytes = bytes;
+    return this;
+  }
+
+  public UploadAllocator tempDir(Path tempDir) {
+    this.tempDir = tempDir;
+    return this;
+  }
+
+  public UploadAllocator fileLifetime(long duration, TimeUnit units) {
+    checkArgument(duration > 0);
+    this.fileLifetimeMillis = units.toMillis(duration);
+    return this;
+  }
+
+  @Override
+  public Buffer allocate() throws IOException {
+    return allocate(0);
+  }
+
+  @Override
+  public Buffer allocate(long size) throws IOException {
+    deleteExpiredFiles();
+    SpoolBuffer ret = new SpoolBuffer((int) Math.min(size, memoryThreshold));
+    if (size > maxRequestBytes) {
+      ret.discard();
+    }
+    return ret;
+  }
+
+  /**
+   * Marks the given request's body as in use, so that its temp file (if any) is kept until release() is called. Called
+   * when the request is dispatched.
+   */
+  public void hold(Request request) {
+    SpoolBuffer buffer = getRoot(request);
+    if (buffer != null) {
+      buffer.held = true;
+    }
+  }
+
+  /**
+   * Whether the given request's body (or one of its parts) went over the size limits, in which case its content was
+   * discarded.
+   */
+  public boolean isTooLarge(Request request) {
+    SpoolBuffer buffer = getRoot(request);
+    return buffer != null && buffer.tooLarge;
+  }
+
+  /**
+   * Deletes the temp file (if any) that the given request's body was spooled to. Called once the request has been
+   * handled.
+   */
+  public void release(Request request) {
+    SpoolBuffer buffer = getRoot(request);
+    if (buffer != null) {
+      buffer.delete();
+    }
+  }
+
+  /**
+   * Finds the SpoolBuffer that the request's body was read into. A plain body holds it directly, while a multipart body
+   * holds one of Simple's BufferAllocators, which allocates each part as a Segment of it.
+   */
+  private static SpoolBuffer getRoot(Request request) {
+    Object body = Reflection.get(request.request, "body");
+    Object buffer = body == null ? null : Reflection.get(body, "buffer");
+    while (buffer instanceof BufferAllocator) {
+      buffer = Reflection.get(buffer, "buffer");
+    }
+    if (buffer instanceof Segment) {
+      buffer = ((Segment) buffer).root;
+    }
+    return buffer instanceof SpoolBuffer ? (SpoolBuffer) buffer : null;
+  }
+
+  private Path createFile(SpoolBuffer buffer) throws IOException {
+    Path ret = tempDir == null ? Files.createTempFile(PREFIX, null) : Files.createTempFile(tempDir, PREFIX, null);
+    files.put(ret, buffer);
+    return ret;
+  }
+
+  /**
+   * Cleans up after uploads which never made it to a request. A file which belongs to a request is never expired, and
+   * the timer starts over with every write, so an upload which is still streaming in never loses its file.
+   */
+  private void deleteExpiredFiles() {
+    long cutoff = System.currentTimeMillis() - fileLifetimeMillis;
+    files.values().forEach(buffer -> {
+      if (!buffer.held && buffer.lastWrite < cutoff) {
+        buffer.delete();
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Path path : files.keySet()) {
+      Files.deleteIfExists(path);
+    }
+    files.clear();
+  }
+
+  /**
+   * The root buffer for a request body. Parts of a multipart body are Segments of this buffer.
+   */
+  private class SpoolBuffer implements Buffer {
+
+    private byte[] memory;
+    private Path file = null;
+    private FileChannel output = null;
+    private long length = 0;
+    private Segment segment = null;
+    private boolean closed = false;
+    private volatile long lastWrite = System.currentTimeMillis();
+    private volatile boolean held = false;
+    private volatile boolean tooLarge = false;
+
+    private SpoolBuffer(int initialCapacity) {
+      this.memory = new byte[Math.max(initialCapacity, 512)];
+    }
+
+    @Override
+    public Buffer allocate() throws IOException {
+      if (closed) {
+        throw new BufferException("Buffer has been closed");
+      }
+      if (segment != null) {
+        segment.close();
+      }
+      segment = new Segment(this, this, length);
+      return segment;
+    }
+
+    @Override
+    public Buffer append(byte[] array) throws IOException {
+      return append(array, 0, array.length);
+    }
+
+    @Override
+    public Buffer append(byte[] array, int off, int size) throws IOException {
+      if (closed) {
+        throw new BufferException("Buffer has been closed");
+      }
+      if (size <= 0 || tooLarge) {
+        return this;
+      }
+      if (length + size > maxRequestBytes) {
+        discard();
+        return this;
+      }
+      if (output == null && length + size > memoryThreshold) {
+        file = createFile(this);
+        output = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        write(ByteBuffer.wrap(memory, 0, (int) length));
+        memory = null;
+      }
+      if (output != null) {
+        write(ByteBuffer.wrap(array, off, size));
+      } else {
+        if (length + size > memory.length) {
+          memory = Arrays.copyOf(memory, (int) Math.min(Math.max(memory.length * 2, length + size), memoryThreshold));
+        }
+        System.arraycopy(array, off, memory, (int) length, size);
+      }
+      length += size;
+      return this;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        output.write(buffer);
+      }
+      lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Called once the body goes over a limit. Everything buffered so far is dropped and all further bytes are ignored.
+     */
+    private void discard() {
+      tooLarge = true;
+      delete();
+      file = null;
+      memory = new byte[0];
+      length = 0;
+    }
+
+    private void delete() {
+      Path file = this.file;
+      if (file == null || files.remove(file) == null) {
+        return;
+      }
+      try {
+        if (output != null) {
+          output.close();
+        }
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        Log.error(e);
+      }
+    }
+
+    private InputStream open(long offset, long count) throws IOException {
+      if (tooLarge) {
+        return new ByteArrayInputStream(memory);
+      }
+      if (file == null) {
+        return new ByteArrayInputStream(memory, (int) offset, (int) count);
+      }
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      channel.position(offset);
+      return ByteStreams.limit(Channels.newInputStream(channel), count);
+    }
+
+    private long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+      if (tooLarge) {
+        return 0;
+      }
+      if (file == null) {
+        ByteBuffer buffer = ByteBuffer.wrap(memory, (int) offset, (int) count);
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+        return count;
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        long transferred = 0;
+        while (transferred < count) {
+          transferred += channel.transferTo(offset + transferred, count - transferred, target);
+        }
+        return transferred;
+      }
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+      close();
+      return open(0, length);
+    }
+
+    @Override
+    public String encode() throws IOException {
+      return encode(StandardCharsets.UTF_8.name());
+    }
+
+    @Override
+    public String encode(String charset) throws IOException {
+      return encode(0, length, charset);
+    }
+
+    private String encode(long offset, long count, String charset) throws IOException {
+      if (tooLarge) {
+        return "";
+      }
+      if (file == null) {
+        return new String(memory, (int) offset, (int) count, charset);
+      }
+      try (InputStream is = open(offset, count)) {
+        return new String(ByteStreams.toByteArray(is), charset);
+      }
+    }
+
+    @Override
+    public void clear() throws IOException {
+      if (closed) {
+        throw new BufferException("Buffer has been closed");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        if (output != null) {
+          output.close();
+        }
+      }
+      if (segment != null) {
+        segment.close();
+      }
+    }
+
+    @Override
+    public long length() {
+      return length;
+    }
+  }
+
+  /**
+   * A range of a SpoolBuffer. Multipart parts are stored as segments, and the per-part limit is enforced here.
+   */
+  public class Segment implements Buffer {
+
+    private final SpoolBuffer root;
+    private final Buffer parent;
+    private final long first;
+    private long last;
+    private Segment segment = null;
+    private boolean closed = false;
+
+    private Segment(SpoolBuffer root, Buffer parent, long first) {
+      this.root = root;
+      this.parent = parent;
+      this.first = first;
+      this.last = first;
+    }
+
+    @Override
+    public Buffer allocate() throws IOException {
+      if (closed) {
+        throw new BufferException("Buffer has been closed");
+      }
+      if (segment != null) {
+        segment.close();
+      }
+      segment = new Segment(root, this, last);
+      return segment;
+    }
+
+    @Override
+    public Buffer append(byte[] array) throws IOException {
+      return append(array, 0, array.length);
+    }
+
+    @Override
+    public Buffer append(byte[] array, int off, int size) throws IOException {
+      if (closed) {
+        throw new BufferException("Buffer has been closed");
+      }
+      if (size > 0 && !root.tooLarge) {
+        if (last - first + size > maxPartBytes) {
+          root.discard();
+          return this;
+        }
+        parent.append(array, off, size);
+        last += size;
+      }
+      return this;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+      return root.open(first, last - first);
+    }
+
+    @Override
+    public String encode() throws IOException {
+      return encode(StandardCharsets.UTF_8.name());
+    }
+
+    @Override
+    public String encode(String charset) throws IOException {
+      return root.encode(first, last - first, charset);
+    }
+
+    /**
+     * Writes this segment to the given channel. When the body has been spooled to disk, this uses
+     * FileChannel.transferTo() so the bytes never get copied onto the heap.
+     */
+    public long transferTo(WritableByteChannel target) {
+      try {
+        return root.transferTo(first, last - first, target);
+      } catch (IOException e) {
+        throw propagate(e);
+      }
+    }
+
+    /**
+     * True if this segment lives in a temp file rather than in memory.
+     */
+    public boolean isSpooled() {
+      return root.file != null;
+    }
+
+    @Override
+    public void clear() throws IOException {
+      if (closed) {
+        throw new BufferException("Buffer is closed");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      if (segment != null) {
+        segment.close();
+      }
+    }
+
+    @Override
+    public long length() {
+      return last - first;
+    }
+  }
+
+}
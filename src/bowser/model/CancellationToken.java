@@ -0,0 +1,27 @@
+package bowser.model;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets long-running handlers cooperatively stop working on a request once the client has gone away. This is set in
+ * addition to the handler thread being interrupted.
+ */
+public class CancellationToken {
+
+  private volatile boolean cancelled = false;
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public void throwIfCancelled() {
+    if (cancelled) {
+      throw new CancellationException("The client disconnected.");
+    }
+  }
+
+}
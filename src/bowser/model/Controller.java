@@ -48,6 +48,13 @@ public abstract class Controller {
     folders.put(extension, folder);
   }
 
+  /**
+   * Extension -> the folder that files with that extension live in.
+   */
+  public Map<String, String> getFolders() {
+    return folders;
+  }
+
   public byte[] getData(String path) {
     return server.getResourceLoader().getData(path, this);
   }
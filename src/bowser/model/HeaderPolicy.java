@@ -0,0 +1,148 @@
+package bowser.model;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * The headers which get added to every response (CORS, X-Frame-Options, HSTS).
+ *
+ * The header values are computed once when the server starts, so applying a policy is a single pass over a few
+ * precomputed strings. The only per-request value is the echoed Origin.
+ */
+public class HeaderPolicy {
+
+  private static final String ALLOW_ORIGIN = "Access-Control-Allow-Origin";
+
+  // null means that any origin is echoed back
+  private Set<String> allowedOrigins = null;
+  private boolean allowCredentials = true;
+  private String exposeHeaders = "Content-Disposition";
+  private String allowMethods = "GET, POST, PUT, DELETE, OPTIONS";
+  private String allowHeaders = "Content-Type, Authorization";
+  private String frameOptions = "SAMEORIGIN";
+  private long hstsSeconds = TimeUnit.DAYS.toSeconds(365);
+
+  // published together so that a request thread never sees the names from one compile with the values from another
+  private volatile Compiled compiled = null;
+
+  /**
+   * Only echo the Origin header back if it is one of these origins (ex: https://example.com).
+   */
+  public HeaderPolicy allowOrigins(String... origins) {
+    this.allowedOrigins = ImmutableSet.copyOf(origins);
+    return this;
+  }
+
+  public HeaderPolicy allowCredentials(boolean allowCredentials) {
+    this.allowCredentials = allowCredentials;
+    return this;
+  }
+
+  public HeaderPolicy exposeHeaders(String exposeHeaders) {
+    this.exposeHeaders = exposeHeaders;
+    return this;
+  }
+
+  public HeaderPolicy allowMethods(String allowMethods) {
+    this.allowMethods = allowMethods;
+    return this;
+  }
+
+  public HeaderPolicy allowHeaders(String allowHeaders) {
+    this.allowHeaders = allowHeaders;
+    return this;
+  }
+
+  /**
+   * Pass null to leave out the X-Frame-Options header.
+   */
+  public HeaderPolicy frameOptions(String frameOptions) {
+    this.frameOptions = frameOptions;
+    return this;
+  }
+
+  /**
+   * The Strict-Transport-Security max-age. This is only sent when the server is using SSL. Pass 0 to leave it out.
+   */
+  public HeaderPolicy hsts(long duration, TimeUnit units) {
+    this.hstsSeconds = units.toSeconds(duration);
+    return this;
+  }
+
+  public HeaderPolicy copy() {
+    HeaderPolicy ret = new HeaderPolicy();
+    ret.allowedOrigins = allowedOrigins;
+    ret.allowCredentials = allowCredentials;
+    ret.exposeHeaders = exposeHeaders;
+    ret.allowMethods = allowMethods;
+    ret.allowHeaders = allowHeaders;
+    ret.frameOptions = frameOptions;
+    ret.hstsSeconds = hstsSeconds;
+    return ret;
+  }
+
+  /**
+   * Precomputes the header values. Headers which are turned off are stored with a null value so that applying this
+   * policy removes anything a previously applied policy set.
+   */
+  public HeaderPolicy compile(boolean ssl) {
+    List<String> names = Lists.newArrayList();
+    List<String> values = Lists.newArrayList();
+
+    names.add("Access-Control-Allow-Credentials");
+    values.add(allowCredentials ? "true" : null);
+    names.add("Access-Control-Expose-Headers");
+    values.add(exposeHeaders);
+    names.add("Access-Control-Allow-Methods");
+    values.add(allowMethods);
+    names.add("Access-Control-Allow-Headers");
+    values.add(allowHeaders);
+    names.add("X-Frame-Options");
+    values.add(frameOptions);
+    names.add("Strict-Transport-Security");
+    values.add(ssl && hstsSeconds > 0 ? "max-age=" + hstsSeconds + "; includeSubDomains" : null);
+    if (allowedOrigins != null) {
+      names.add("Vary");
+      values.add("Origin");
+    }
+
+    this.compiled = new Compiled(names.toArray(new String[names.size()]), values.toArray(new String[values.size()]));
+    return this;
+  }
+
+  public void apply(Request request, Response response) {
+    Compiled compiled = this.compiled;
+    if (compiled == null) {
+      // the server compiles every policy it knows about, but a policy can be set on a route after the server starts
+      compiled = compile(request.request.isSecure()).compiled;
+    }
+
+    String origin = request.getHeader("Origin");
+    if (origin != null && allowedOrigins != null && !allowedOrigins.contains(origin)) {
+      origin = null;
+    }
+    response.header(ALLOW_ORIGIN, origin);
+
+    for (int i = 0; i < compiled.names.length; i++) {
+      response.header(compiled.names[i], compiled.values[i]);
+    }
+  }
+
+  public static HeaderPolicy defaults() {
+    return new HeaderPolicy();
+  }
+
+  private static class Compiled {
+    private final String[] names, values;
+
+    private Compiled(String[] names, String[] values) {
+      this.names = names;
+      this.values = values;
+    }
+  }
+
+}
@@ -4,12 +4,20 @@ import static ox.util.Utils.propagate;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import org.simpleframework.http.ContentType;
 import org.simpleframework.http.Part;
 
+import bowser.misc.UploadAllocator;
+
 import ox.IO;
 import ox.Json;
+import ox.Reflection;
 
 public class HttpPart {
 
@@ -39,6 +47,52 @@ public class HttpPart {
     }
   }
 
+  /**
+   * Writes this part to the given file. If the upload was spooled to disk, this is a zero-copy transfer between files.
+   */
+  public void transferTo(Path target) {
+    try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      transferTo(channel);
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  public void transferTo(WritableByteChannel target) {
+    UploadAllocator.Segment segment = getSegment();
+    if (segment != null) {
+      segment.transferTo(target);
+    } else {
+      IO.from(getInputStream()).to(Channels.newOutputStream(target));
+    }
+  }
+
+  /**
+   * True if this part was spooled to a temp file rather than held in memory.
+   */
+  public boolean isSpooled() {
+    UploadAllocator.Segment segment = getSegment();
+    return segment != null && segment.isSpooled();
+  }
+
+  /**
+   * The number of bytes in this part, or -1 if unknown.
+   */
+  public long getSize() {
+    UploadAllocator.Segment segment = getSegment();
+    return segment == null ? -1 : segment.length();
+  }
+
+  private UploadAllocator.Segment getSegment() {
+    Object body = Reflection.get(delegate, "body");
+    if (body == null) {
+      return null;
+    }
+    Object buffer = Reflection.get(body, "buffer");
+    return buffer instanceof UploadAllocator.Segment ? (UploadAllocator.Segment) buffer : null;
+  }
+
   public ContentType getContentType() {
     return delegate.getContentType();
   }
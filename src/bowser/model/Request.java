@@ -1,20 +1,23 @@
 package bowser.model;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
-import static ox.util.Utils.getExtension;
 import static ox.util.Utils.only;
 import static ox.util.Utils.propagate;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.simpleframework.http.Cookie;
 import org.simpleframework.http.Part;
@@ -23,28 +26,46 @@ import org.simpleframework.http.Query;
 import org.simpleframework.transport.TransportChannel;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import bowser.handler.MobileDetector;
+import bowser.misc.JsonArrayReader;
 
+import ox.IO;
 import ox.Json;
 import ox.Pair;
 import ox.Reflection;
 import ox.util.Images;
+import ox.util.Utils;
 import ox.x.XList;
 import ox.x.XMap;
 
 public class Request {
 
   public final org.simpleframework.http.Request request;
-  public List<String> segments;
   public String path;
+
+  // lazily split from segmentsPath, which lets us notice if the path field gets reassigned
+  private List<String> segments;
+  private String segmentsPath;
   private Map<String, Object> userData = Maps.newHashMap();
 
   private String host = null;
 
+  // values captured from {name} groups in the matched route
+  private Map<String, String> pathParams = null;
+
+  private final CancellationToken cancellationToken = new CancellationToken();
+
+  // cached by isAborted()
+  private TransportChannel channel = null;
+
+  // the route which handled this request
+  private Route route = null;
+
   // cached value of getJson
   private Json json = null;
 
@@ -57,6 +78,14 @@ public class Request {
     setPath(request.getPath().getPath());
   }
 
+  public void setRoute(Route route) {
+    this.route = route;
+  }
+
+  public Route getRoute() {
+    return route;
+  }
+
   public void setHost(String s) {
     this.host = s;
   }
@@ -95,12 +124,25 @@ public class Request {
   }
 
   public void setPath(String path) {
-    this.segments = Splitter.on('/').omitEmptyStrings().splitToList(path);
     this.path = path;
   }
 
+  /**
+   * The non-empty parts of the path. Most handlers never look at these, so they are only split out when asked for.
+   *
+   * This replaces the public "segments" field, which was always filled in by setPath(). Code that read the field should
+   * call this instead.
+   */
+  public List<String> getSegments() {
+    if (segments == null || segmentsPath != path) {
+      segments = Splitter.on('/').omitEmptyStrings().splitToList(path);
+      segmentsPath = path;
+    }
+    return segments;
+  }
+
   public String getSegment(int index) {
-    return segments.get(index);
+    return getSegments().get(index);
   }
 
   public String getString(int index) {
@@ -115,6 +157,37 @@ public class Request {
     return parseLong(getSegment(index));
   }
 
+  /**
+   * Records a value captured from a {name} group in the route. These are merged into getJson() whenever it is built, so
+   * matching a route never forces the body to be read.
+   */
+  public Request setPathParam(String key, String value) {
+    if (pathParams == null) {
+      pathParams = Maps.newLinkedHashMap();
+    }
+    pathParams.put(key, value);
+    if (json != null && json.isObject()) {
+      json.with(key, value);
+    }
+    return this;
+  }
+
+  public String getPathParam(String key) {
+    return pathParams == null ? null : pathParams.get(key);
+  }
+
+  public int getPathInt(String key) {
+    return parseInt(checkNotNull(getPathParam(key), "Missing path param: " + key));
+  }
+
+  public long getPathLong(String key) {
+    return parseLong(checkNotNull(getPathParam(key), "Missing path param: " + key));
+  }
+
+  public Map<String, String> getPathParams() {
+    return pathParams == null ? ImmutableMap.of() : pathParams;
+  }
+
   public boolean isPost() {
     return request.getMethod().equalsIgnoreCase("POST");
   }
@@ -148,15 +221,29 @@ public class Request {
     return this;
   }
 
+  /**
+   * The body as json, with query and path params merged in. This holds the whole document in memory -- for bodies which
+   * are large JSON arrays, use iterateJsonArray() or forEachJson() instead.
+   */
   public Json getJson() {
     if (json == null) {
       HttpPart jsonPart = getPart("json");
       if (jsonPart != null) {
         json = jsonPart.toJson();
       } else {
-        String s = getContent();
-        if (s.startsWith("{") || s.startsWith("[")) {
-          json = new Json(s);
+        // peek at the stream so that non-json bodies don't have to be read at all. ox's Json only parses from text, so a
+        // json body is still read into one String before it is parsed.
+        InputStream is = new BufferedInputStream(getInputStream());
+        int c;
+        try {
+          is.mark(1);
+          c = is.read();
+          is.reset();
+        } catch (IOException e) {
+          throw propagate(e);
+        }
+        if (c == '{' || c == '[') {
+          json = IO.from(is).toJson();
         } else {
           json = Json.object();
         }
@@ -169,11 +256,26 @@ public class Request {
             json.with(k, v);
           }
         });
+        if (pathParams != null) {
+          pathParams.forEach(json::with);
+        }
       }
     }
     return json;
   }
 
+  /**
+   * Iterates over the elements of a body which is a large JSON array, without holding the whole array in memory. Note
+   * that query parameters and path params are not merged into these elements.
+   */
+  public Iterator<Json> iterateJsonArray() {
+    return new JsonArrayReader(getInputStream());
+  }
+
+  public void forEachJson(Consumer<Json> callback) {
+    iterateJsonArray().forEachRemaining(callback);
+  }
+
   public String getContent() {
     try {
       return request.getContent();
@@ -263,11 +365,32 @@ public class Request {
     return Pair.of(start, end);
   }
 
+  /**
+   * Cancelled when the client disconnects while this request is being handled (if the server has
+   * interruptHandlerOnDisconnect enabled). Long-running handlers can check this to stop early.
+   */
+  public CancellationToken getCancellationToken() {
+    return cancellationToken;
+  }
+
+  public boolean isCancelled() {
+    return cancellationToken.isCancelled();
+  }
+
   public boolean isAborted() {
-    TransportChannel channel = Reflection.get(request, "channel");
+    return isAborted(ByteBuffer.allocate(1));
+  }
+
+  /**
+   * @param probe A one byte buffer to read into. This lets a caller which is checking many requests reuse one buffer.
+   */
+  public boolean isAborted(ByteBuffer probe) {
     if (channel == null) {
-      // I think this happens when we mock the request during testing
-      return false;
+      channel = Reflection.get(request, "channel");
+      if (channel == null) {
+        // I think this happens when we mock the request during testing
+        return false;
+      }
     }
     SocketChannel socket = channel.getSocket();
 
@@ -276,7 +399,8 @@ public class Request {
 
     int bytesRead;
     try {
-      bytesRead = socket.read(ByteBuffer.allocate(1));
+      probe.clear();
+      bytesRead = socket.read(probe);
     } catch (ClosedChannelException e) {
       return true;
     } catch (IOException e) {
@@ -286,15 +410,49 @@ public class Request {
   }
 
   private static final Set<String> staticExtensions;
+
+  // the static extensions, indexed by their length
+  private static final String[][] staticExtensionsByLength;
+
   static {
     Set<String> set = Sets.newHashSet("css", "scss", "js", "mjs", "jsx", "ico", "otf", "woff", "woff2", "eot", "ttf",
         "mp4", "map", "pdf", "cur", "txt", "mp3", "mov", "webm", "webp");
     set.addAll(Images.FORMATS);
     staticExtensions = ImmutableSet.copyOf(set);
+
+    int maxLength = staticExtensions.stream().mapToInt(String::length).max().getAsInt();
+    staticExtensionsByLength = new String[maxLength + 1][];
+    for (int i = 0; i <= maxLength; i++) {
+      final int length = i;
+      staticExtensionsByLength[i] = staticExtensions.stream().filter(s -> s.length() == length).toArray(String[]::new);
+    }
+  }
+
+  public String getExtension() {
+    return Utils.getExtension(path);
   }
 
+  /**
+   * This is called on every request, so it checks the extension in place rather than substring-ing it out of the path.
+   */
   public boolean isStaticResource() {
-    String extension = getExtension(path);
+    int dot = path.lastIndexOf('.');
+    if (dot == -1 || path.indexOf('/', dot) != -1) {
+      return false;
+    }
+    int length = path.length() - dot - 1;
+    if (length >= staticExtensionsByLength.length) {
+      return false;
+    }
+    for (String extension : staticExtensionsByLength[length]) {
+      if (path.regionMatches(true, dot + 1, extension, 0, length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static boolean isStaticExtension(String extension) {
     return staticExtensions.contains(extension);
   }
 
@@ -6,18 +6,30 @@ import static ox.util.Utils.propagate;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
 
 import org.simpleframework.http.Cookie;
 import org.simpleframework.http.Status;
 
+import com.google.common.io.CountingOutputStream;
+
+import bowser.misc.Gzip;
+
 import ox.IO;
 import ox.Json;
 import ox.Log;
 
 public class Response {
 
+  /**
+   * Response bodies smaller than this are sent uncompressed, since gzip doesn't save enough to be worth the CPU.
+   */
+  public static int minGzipBytes = 1024;
+
   public final org.simpleframework.http.Response response;
 
   public String responseBody = null;
@@ -29,6 +41,12 @@ public class Response {
 
   private boolean gzip = false;
 
+  // counts the bytes written to the underlying response (after compression)
+  private CountingOutputStream countingStream = null;
+
+  // bytes written with writeRaw(), which bypasses the counting stream
+  private long channelBytes = 0;
+
   public Response(org.simpleframework.http.Response response) {
     this.response = response;
   }
@@ -117,9 +135,9 @@ public class Response {
 
   public OutputStream getOutputStream() {
     try {
-      OutputStream os = response.getOutputStream();
+      OutputStream os = getRawOutputStream();
       if (gzip) {
-        os = new GZIPOutputStream(os);
+        os = Gzip.wrap(os);
       }
       return os;
     } catch (IOException e) {
@@ -127,6 +145,64 @@ public class Response {
     }
   }
 
+  /**
+   * The response stream without any gzip wrapping. Use this to send content which is already encoded (ex: a precompressed
+   * asset) -- the Content-Encoding header is still set by setCompressed().
+   */
+  public OutputStream getRawOutputStream() {
+    try {
+      if (countingStream == null) {
+        countingStream = new CountingOutputStream(response.getOutputStream());
+      }
+      return countingStream;
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Writes an already-encoded body straight to the response channel. A direct buffer gets written out without being
+   * copied onto the heap.
+   */
+  public Response writeRaw(ByteBuffer buffer) {
+    try {
+      WritableByteChannel channel = response.getByteChannel();
+      buffer = buffer.duplicate();
+      while (buffer.hasRemaining()) {
+        channelBytes += channel.write(buffer);
+      }
+      return this;
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  /**
+   * Writes part of a file straight to the response channel. The file is read through the JDK's direct transfer buffers,
+   * so its bytes never pass through a heap stream.
+   */
+  public Response transferFrom(FileChannel file, long position, long count) {
+    try {
+      WritableByteChannel channel = response.getByteChannel();
+      long transferred = 0;
+      while (transferred < count) {
+        long n = file.transferTo(position + transferred, count - transferred, channel);
+        if (n <= 0) {
+          throw new IOException("File was truncated while it was being sent.");
+        }
+        transferred += n;
+        channelBytes += n;
+      }
+      return this;
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  public long getBytesWritten() {
+    return channelBytes + (countingStream == null ? 0 : countingStream.getCount());
+  }
+
   public int status() {
     return response.getStatus().code;
   }
@@ -166,12 +242,30 @@ public class Response {
     return ret;
   }
 
+  /**
+   * Writes an already-encoded body. Small and already-compressed bodies skip gzip, and uncompressed bodies get an exact
+   * Content-Length.
+   */
+  private void writeBody(byte[] data) throws IOException {
+    if (!response.isCommitted()) {
+      if (gzip && (data.length < minGzipBytes || !Gzip.isCompressible(response.getValue("Content-Type")))) {
+        setCompressed(false);
+      }
+      if (!gzip) {
+        header("Content-Length", String.valueOf(data.length));
+      }
+    }
+    try (OutputStream os = getOutputStream()) {
+      os.write(data);
+    }
+  }
+
   public Response close() {
     // we used to write the responseBody immediately, but this caused race conditions with routes that acquired database
     // transaction locks. Writing the response after all database locks are released is the safest.
     if (responseBody != null) {
       try {
-        IO.from(responseBody).to(getOutputStream());
+        writeBody(responseBody.getBytes(StandardCharsets.UTF_8));
       } catch (Exception e) {
         Log.error(e);
       }
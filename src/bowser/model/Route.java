@@ -7,6 +7,7 @@ import java.net.URL;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import bowser.misc.DependencyTracker;
 import bowser.template.Data;
 import bowser.template.Template;
 
@@ -37,6 +38,13 @@ public class Route {
   public String host = "";
   public boolean renderHead = true;
 
+  /**
+   * If set, overrides the server's default HeaderPolicy for this route.
+   */
+  public HeaderPolicy headerPolicy = null;
+
+  public final RouteStats stats = new RouteStats();
+
   public Route(Controller controller, String method, String path, boolean enableCaching) {
     this.controller = controller;
     this.method = method;
@@ -63,7 +71,15 @@ public class Route {
   }
 
   public boolean matches(Request request) {
-    if (!request.getMethod().equalsIgnoreCase(method)) {
+    return matches(request, request.getMethod());
+  }
+
+  /**
+   * Checks whether this route would handle the request if it had been made with the given method (ex: for the request
+   * that a CORS preflight is asking about).
+   */
+  public boolean matches(Request request, String method) {
+    if (!method.equalsIgnoreCase(this.method)) {
       return false;
     }
     Matcher matcher = regex.matcher(request.path);
@@ -76,7 +92,7 @@ public class Route {
     }
 
     for (int i = 1; i <= matcher.groupCount(); i++) {
-      request.getJson().with(namedGroups.get(i - 1), matcher.group(i));
+      request.setPathParam(namedGroups.get(i - 1), matcher.group(i));
     }
 
     return true;
@@ -84,19 +100,44 @@ public class Route {
 
   public Template getTemplate() {
     if ((this.template == null || !enableCaching) && resource != null && resource.endsWith(".html")) {
-      try {
-        URL url = controller.getResource(resource);
-        checkNotNull(url, this + ": Could not find resource: " + resource);
-        String source = IO.from(url).toString();
-        this.template = Template.compile(source, controller, false, false, renderHead);
-      } catch (Exception e) {
-        Log.error("Problem compiling template: " + resource);
-        throw propagate(e);
-      }
+      DependencyTracker tracker = controller.getServer().getDependencyTracker();
+      long generation = tracker.generation(getCacheKey());
+      Template template = tracker.track(getCacheKey(), () -> {
+        try {
+          URL url = controller.getResource(resource);
+          checkNotNull(url, this + ": Could not find resource: " + resource);
+          tracker.useFile(url);
+          String source = IO.from(url).toString();
+          return Template.compile(source, controller, false, false, renderHead);
+        } catch (Exception e) {
+          Log.error("Problem compiling template: " + resource);
+          throw propagate(e);
+        }
+      });
+      // if one of its files changed while it was compiling, it gets compiled again next time
+      this.template = tracker.isCurrent(getCacheKey(), generation) ? template : null;
+      return template;
     }
     return this.template;
   }
 
+  /**
+   * Identifies this route's template (or resource) to the DependencyTracker.
+   */
+  public String getCacheKey() {
+    return "route:" + controller.getClass().getName() + ":" + this;
+  }
+
+  /**
+   * Called when one of the files that this route's template (or resource) was built from has changed.
+   */
+  public void invalidate() {
+    this.template = null;
+    if (resourceData != null) {
+      load();
+    }
+  }
+
   public Route data(Data data) {
     this.data = data;
     return this;
@@ -112,7 +153,11 @@ public class Route {
       if (resource.endsWith(".html")) {
         getTemplate(); // warm the cache
       } else {
-        resourceData = IO.from(controller.getClass(), resource).toByteArray();
+        DependencyTracker tracker = controller.getServer().getDependencyTracker();
+        resourceData = tracker.track(getCacheKey(), () -> {
+          tracker.useFile(controller.getClass().getResource(resource));
+          return IO.from(controller.getClass(), resource).toByteArray();
+        });
       }
     }
   }
@@ -127,6 +172,11 @@ public class Route {
     return this;
   }
 
+  public Route headers(HeaderPolicy headerPolicy) {
+    this.headerPolicy = headerPolicy;
+    return this;
+  }
+
   public Route headless() {
     renderHead = false;
     return this;
@@ -0,0 +1,114 @@
+package bowser.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import ox.Json;
+
+/**
+ * Request counts and a latency histogram for a single Route.
+ *
+ * Recording is lock-free. Latencies are stored in microseconds in log-linear buckets (four buckets per power of two),
+ * so percentiles are accurate to within 25%.
+ */
+public class RouteStats {
+
+  private static final int SUB_BUCKETS = 4;
+  private static final int BUCKET_COUNT = 62 * SUB_BUCKETS;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder totalMicros = new LongAdder();
+  private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0);
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+  public void record(long micros, long bytes, boolean error) {
+    micros = Math.max(micros, 0);
+    requests.increment();
+    if (error) {
+      errors.increment();
+    }
+    bytesWritten.add(bytes);
+    totalMicros.add(micros);
+    maxMicros.accumulate(micros);
+    buckets.incrementAndGet(bucket(micros));
+  }
+
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  public long getErrorCount() {
+    return errors.sum();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * Returns the given percentile (0-1) of latency in microseconds.
+   */
+  public long getPercentileMicros(double percentile) {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(upperBound(i), getMaxMicros());
+      }
+    }
+    return getMaxMicros();
+  }
+
+  public Json toJson() {
+    long count = getRequestCount();
+    return Json.object()
+        .with("requests", count)
+        .with("errors", getErrorCount())
+        .with("bytesWritten", getBytesWritten())
+        .with("avgMillis", count == 0 ? 0 : millis(totalMicros.sum() / count))
+        .with("p50Millis", millis(getPercentileMicros(.5)))
+        .with("p90Millis", millis(getPercentileMicros(.9)))
+        .with("p99Millis", millis(getPercentileMicros(.99)))
+        .with("maxMillis", millis(getMaxMicros()));
+  }
+
+  private static double millis(long micros) {
+    return Math.round(micros / 100.0) / 10.0;
+  }
+
+  private static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(micros);
+    int ret = (exp - 1) * SUB_BUCKETS + (int) ((micros >>> (exp - 2)) & (SUB_BUCKETS - 1));
+    return Math.min(ret, BUCKET_COUNT - 1);
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exp = bucket / SUB_BUCKETS + 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - 2);
+    return lower + (1L << (exp - 2)) - 1;
+  }
+
+}
@@ -5,6 +5,7 @@ import java.util.Map;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Maps;
 
+import ox.Json;
 import ox.x.XList;
 
 public class Head extends DomNode {
@@ -46,6 +47,25 @@ public class Head extends DomNode {
     return this;
   }
 
+  /**
+   * Adds an import map which maps module paths to the urls they should be loaded from. It goes before all of the other
+   * scripts, since it has to be in place before any module loads.
+   */
+  public Head importMap(Map<String, String> imports) {
+    Json json = Json.object();
+    imports.forEach((path, url) -> json.with(path, url));
+    DomNode script = new DomNode("script").attribute("type", "importmap");
+    script.add(new TextNode(Json.object().with("imports", json).toString()));
+    script.parent = this;
+
+    int i = 0;
+    while (i < children.size() && !children.get(i).tag.equalsIgnoreCase("script")) {
+      i++;
+    }
+    children.add(i, script);
+    return this;
+  }
+
   @Override
   public Head copy() {
     Head ret = new Head();
@@ -8,6 +8,11 @@ import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hashing;
 
 import bowser.misc.SCSSProcessor;
 import bowser.node.DomNode;
@@ -30,6 +35,9 @@ public class CSSScoper {
 
   private final SCSSProcessor processor;
 
+  // parsing is slow, so the scoped output is kept for each combination of stylesheet, scope and root element
+  private final Cache<String, String> cache = CacheBuilder.newBuilder().maximumSize(1000).recordStats().build();
+
   public CSSScoper(SCSSProcessor processor) {
     this.processor = processor;
   }
@@ -43,9 +51,24 @@ public class CSSScoper {
       byte[] data = processor.process(cssFileName, css.getBytes(StandardCharsets.UTF_8));
       css = new String(data, StandardCharsets.UTF_8);
     }
+    String scopeSelector = "[css='" + cssFileName + "']";
+
+    // only the root's tag and classes affect how selectors are rewritten (see matches())
+    List<String> classes = Ordering.natural().sortedCopy(root.getClasses());
+    String key = Hashing.murmur3_128().hashString(css, StandardCharsets.UTF_8) + "|" + scopeSelector + "|"
+        + root.tag.toLowerCase() + "|" + String.join(".", classes) + "|" + url;
+
+    String ret = cache.getIfPresent(key);
+    if (ret == null) {
+      ret = scope(root, css, scopeSelector, url);
+      cache.put(key, ret);
+    }
+    return ret;
+  }
+
+  private String scope(DomNode root, String css, String scopeSelector, String url) {
     try {
       StyleSheet ss = CSSFactory.parseString(css, url == null ? null : new URL(url));
-      String scopeSelector = "[css='" + cssFileName + "']";
       addScope(root, ss, scopeSelector);
 
       StringBuilder sb = new StringBuilder();
@@ -56,6 +79,13 @@ public class CSSScoper {
     }
   }
 
+  /**
+   * Hits and misses for the cache of scoped stylesheets.
+   */
+  public CacheStats getCacheStats() {
+    return cache.stats();
+  }
+
   private void addScope(DomNode root, Rule<?> rule, String scopeSelector) {
     rule.forEach(item -> {
       if (item instanceof RuleSet) {
@@ -17,6 +17,7 @@ import com.google.common.base.Functions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.html.HtmlEscapers;
 
@@ -47,16 +48,25 @@ public class Template {
   private DomParser parser;
   private final CSSScoper scoper;
 
+  // the module scripts on this page, before their paths were hashed
+  private final List<String> modules = Lists.newArrayList();
+
   private Template(String s, Controller controller, DomParser parser, boolean embedCSS) {
     this.parser = parser;
-    this.scoper = controller == null ? null
-        : new CSSScoper(controller.getServer().getResourceLoader().getScssProcessor());
+    this.scoper = controller == null ? null : controller.getServer().getResourceLoader().getCssScoper();
 
     isRoot = true;
     root = parser.parse(s, isRoot);
 
     init(root, controller, embedCSS);
     if (head != null) {
+      CacheBuster buster = controller == null ? null : controller.getServer().getCacheBuster();
+      if (buster != null && buster.isImportMapEnabled() && !modules.isEmpty()) {
+        Map<String, String> importMap = buster.getImportMap(modules);
+        if (!importMap.isEmpty()) {
+          head.importMap(importMap);
+        }
+      }
       head.sortChildren();
     }
   }
@@ -66,6 +76,7 @@ public class Template {
     for (DomNode node : root.getAllNodes()) {
       if ("js".equals(node.tag)) {
         Iterable<String> jsFiles = Splitter.on(' ').split(node.getAttribute("src"));
+        addModules(jsFiles, node.hasAttribute("module"));
         if (node.hasAttribute("inline")) {
           List<DomNode> jsNodes = Imports.importJSInline(jsFiles, controller);
           node.parent.replace(node, jsNodes);
@@ -93,6 +104,7 @@ public class Template {
           node.parent.remove(node);
         }
       } else if ("import".equals(node.tag)) {
+        addModules(Splitter.on(' ').omitEmptyStrings().split(node.getAttribute("js", "")), false);
         List<DomNode> importedNodes = Imports.createImport(node, controller, parser);
         String iff = node.getAttribute("if");
         if (iff != null) {
@@ -117,6 +129,14 @@ public class Template {
     }
   }
 
+  private void addModules(Iterable<String> jsFiles, boolean module) {
+    for (String jsFile : jsFiles) {
+      if (module || jsFile.endsWith(".mjs") || jsFile.endsWith(".jsx")) {
+        modules.add(jsFile);
+      }
+    }
+  }
+
   public String render(Context context) {
     StringBuilder sb = new StringBuilder();
     if (isRoot) {